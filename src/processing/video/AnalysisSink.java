@@ -0,0 +1,173 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.nio.ByteOrder;
+
+import org.freedesktop.gstreamer.Bin;
+import org.freedesktop.gstreamer.Buffer;
+import org.freedesktop.gstreamer.FlowReturn;
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.Sample;
+import org.freedesktop.gstreamer.elements.AppSink;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Second branch of a Movie or Capture pipeline that gets the same decoded
+ * frames as the main sink, scaled down (and optionally reduced to luma) by
+ * GStreamer before they reach Java. The branch starts with a leaky queue, so
+ * a slow reader of the small frames never holds back the main ones.
+ */
+class AnalysisSink {
+  final Bin bin;
+  final int width;
+  final int height;
+  final boolean gray;
+  final PImage image;
+  final FrameInfo frameInfo = new FrameInfo();
+
+  private final AppSink sink;
+  private final NewSampleListener newSampleListener = new NewSampleListener();
+  // Only used on the streaming thread
+  private BufferReader frameReader;
+
+  private final int[][] framePixels = new int[TripleBuffer.SLOTS][];
+  private final byte[][] grayPixels = new byte[TripleBuffer.SLOTS][];
+  private final FrameInfo[] slotInfo = { new FrameInfo(), new FrameInfo(), new FrameInfo() };
+  private final TripleBuffer frameExchange = new TripleBuffer();
+  private byte[] grayFrame;
+
+
+  AnalysisSink(int width, int height, boolean gray) {
+    this.width = width;
+    this.height = height;
+    this.gray = gray;
+
+    String format;
+    if (gray) {
+      format = "GRAY8";
+    } else if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+      format = "BGRA";
+    } else {
+      format = "ARGB";
+    }
+    bin = Gst.parseBinFromDescription(
+      "queue leaky=downstream max-size-buffers=1 ! videoscale ! videoconvert ! " +
+      "video/x-raw, format=" + format + ", width=" + width + ", height=" + height +
+      ", pixel-aspect-ratio=1/1 ! appsink name=analysis", true);
+
+    sink = (AppSink) bin.getElementByName("analysis");
+    sink.set("emit-signals", true);
+    sink.set("max-buffers", 1);
+    sink.set("drop", true);
+    sink.connect(newSampleListener);
+
+    image = new PImage(width, height, PConstants.ARGB);
+  }
+
+
+  boolean available() {
+    return frameExchange.hasFresh();
+  }
+
+
+  /**
+   * Hands the latest small frame over to the image, returning false if there
+   * was nothing new.
+   */
+  boolean read() {
+    if (!frameExchange.consume()) {
+      return false;
+    }
+    int front = frameExchange.frontIndex();
+    if (gray) {
+      if (grayPixels[front] == null) {
+        return false;
+      }
+      grayFrame = grayPixels[front];
+      if (image.pixels == null || image.pixels.length != grayFrame.length) {
+        image.pixels = new int[grayFrame.length];
+      }
+      Video.expandGray(grayFrame, grayFrame.length, image.pixels);
+    } else {
+      if (framePixels[front] == null) {
+        return false;
+      }
+      image.pixels = framePixels[front];
+    }
+    frameInfo.set(slotInfo[front]);
+    image.updatePixels();
+    return true;
+  }
+
+
+  byte[] grayPixels() {
+    return grayFrame;
+  }
+
+
+  void dispose() {
+    sink.disconnect(newSampleListener);
+    sink.dispose();
+    bin.dispose();
+  }
+
+
+  private class NewSampleListener implements AppSink.NEW_SAMPLE {
+    @Override
+    public FlowReturn newSample(AppSink elem) {
+      Sample sample = elem.pullSample();
+      long arrival = System.nanoTime();
+
+      if (frameReader == null) {
+        frameReader = new BufferReader();
+      }
+      Buffer buffer = sample.getBuffer();
+      if (frameReader.map(buffer)) {
+        int slot = frameExchange.backIndex();
+        int count = width * height;
+        if (gray) {
+          byte[] dest = grayPixels[slot];
+          if (dest == null) {
+            dest = grayPixels[slot] = new byte[count];
+          }
+          frameReader.copyGray(width, height, dest);
+        } else {
+          int[] dest = framePixels[slot];
+          if (dest == null) {
+            dest = framePixels[slot] = new int[count];
+          }
+          frameReader.copyRows(width, height, dest);
+        }
+        slotInfo[slot].set(buffer, arrival);
+        frameReader.unmap();
+        frameExchange.publish();
+      }
+      sample.dispose();
+      return FlowReturn.OK;
+    }
+  }
+}
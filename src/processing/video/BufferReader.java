@@ -0,0 +1,223 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.nio.ByteBuffer;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+
+import org.freedesktop.gstreamer.Buffer;
+import org.freedesktop.gstreamer.glib.Natives;
+import org.freedesktop.gstreamer.lowlevel.GstMiniObjectAPI;
+
+/**
+ * Reads the frames and timestamps of GStreamer buffers on the streaming
+ * thread without leaving garbage behind. Buffer.map() of the bindings builds
+ * a new map structure and ByteBuffer on every call (about 1.5 KB), and the
+ * timestamp getters box their values, so here gst_buffer_map() is called
+ * directly into a map structure that is reused, and the frame and the
+ * timestamps are read straight from native memory. If the direct calls can't
+ * be set up, the methods of the bindings are used instead. Every instance
+ * must only be used from one thread at a time.
+ */
+class BufferReader {
+  // Whether gst_buffer_map() could be bound, and the offsets of the timing
+  // fields in GstBuffer, or -1 if they couldn't be verified.
+  private static final boolean DIRECT;
+  private static final long PTS;
+  private static final long DURATION;
+  private static final long OFFSET;
+
+  static {
+    boolean direct = false;
+    long pts = -1;
+    try {
+      // The same names the bindings load GStreamer with
+      String formats = System.getProperty("gstreamer.GstNative.nameFormats", "%s-1.0");
+      for (String format : formats.split("\\|")) {
+        try {
+          Native.register(BufferReader.class, NativeLibrary.getInstance(String.format(format, "gstreamer")));
+          direct = true;
+          break;
+        } catch (UnsatisfiedLinkError e) {
+        }
+      }
+
+      // GstBuffer starts with a GstMiniObject and the pool pointer, followed
+      // by pts, dts, duration, offset and offset_end. The offsets are checked
+      // against the getters of the bindings before trusting them.
+      int ptr = Native.POINTER_SIZE;
+      long offset = align(align(new GstMiniObjectAPI.MiniObjectStruct().size(), ptr) + ptr, 8);
+      Buffer probe = new Buffer(0);
+      probe.setPresentationTimestamp(0x123456789L);
+      probe.setDuration(0x2345678L);
+      probe.setOffset(0x345678L);
+      Pointer p = Natives.getRawPointer(probe);
+      if (p.getLong(offset) == 0x123456789L && p.getLong(offset + 16) == 0x2345678L &&
+          p.getLong(offset + 24) == 0x345678L) {
+        pts = offset;
+      }
+      probe.dispose();
+    } catch (Throwable t) {
+    }
+    DIRECT = direct;
+    PTS = pts;
+    DURATION = pts + 16;
+    OFFSET = pts + 24;
+  }
+
+  private static native boolean gst_buffer_map(Pointer buffer, Pointer info, int flags);
+  private static native void gst_buffer_unmap(Pointer buffer, Pointer info);
+
+  private static final int GST_MAP_READ = 1;
+
+  // GstMapInfo: memory, flags, data, size, maxsize, user_data[4], reserved[4]
+  private final Memory info = new Memory(16 * Native.POINTER_SIZE);
+  private final Pointer data = new Pointer(0);
+  private long size;
+  private Buffer mapped;
+  private ByteBuffer mappedBytes;
+
+  // Copies bands of rows of the mapped frame, for large frames
+  private int[] bandDest;
+  private int bandWidth;
+  private final RowBands.Rows bandCopy = new RowBands.Rows() {
+    @Override
+    public void run(int y0, int y1) {
+      data.read(4L * y0 * bandWidth, bandDest, y0 * bandWidth, (y1 - y0) * bandWidth);
+    }
+  };
+  private final RowBands bands = new RowBands(bandCopy);
+
+
+  /**
+   * Maps the buffer for reading. Returns false if it can't be mapped.
+   */
+  boolean map(Buffer buffer) {
+    if (DIRECT) {
+      Pointer p = Natives.getRawPointer(buffer);
+      if (!gst_buffer_map(p, info, GST_MAP_READ)) {
+        return false;
+      }
+      int ptr = Native.POINTER_SIZE;
+      Pointer.nativeValue(data, ptr == 8 ? info.getLong(2 * ptr) : info.getInt(2 * ptr) & 0xFFFFFFFFL);
+      size = ptr == 8 ? info.getLong(3 * ptr) : info.getInt(3 * ptr) & 0xFFFFFFFFL;
+    } else {
+      mappedBytes = buffer.map(false);
+      if (mappedBytes == null) {
+        return false;
+      }
+    }
+    mapped = buffer;
+    return true;
+  }
+
+
+  void unmap() {
+    if (mapped == null) {
+      return;
+    }
+    if (DIRECT) {
+      gst_buffer_unmap(Natives.getRawPointer(mapped), info);
+      Pointer.nativeValue(data, 0);
+    } else {
+      mapped.unmap();
+      mappedBytes = null;
+    }
+    mapped = null;
+  }
+
+
+  /**
+   * Copies the mapped frame of 32-bit pixels into <b>dest</b>, the same way
+   * as Video.copyRows().
+   */
+  void copyRows(int width, int height, int[] dest) {
+    if (!DIRECT) {
+      Video.copyRows(mappedBytes, width, height, dest);
+      return;
+    }
+    int count = (int)Math.min(width * height, Math.min(dest.length, size / 4));
+    if (count < Video.parallelThreshold || width <= 0) {
+      data.read(0, dest, 0, count);
+      return;
+    }
+    int rows = count / width;
+    bandDest = dest;
+    bandWidth = width;
+    bands.run(Video.rowPool(), rows);
+    bandDest = null;
+    if (rows * width < count) {
+      data.read(4L * rows * width, dest, rows * width, count - rows * width);
+    }
+  }
+
+
+  /**
+   * Copies the mapped GRAY8 frame into <b>dest</b>, the same way as
+   * Video.copyGray().
+   */
+  void copyGray(int width, int height, byte[] dest) {
+    if (!DIRECT) {
+      Video.copyGray(mappedBytes, width, height, dest);
+      return;
+    }
+    int stride = (width + 3) & ~3;
+    if (size < (long)stride * height) {
+      stride = width;
+    }
+    if (stride == width) {
+      data.read(0, dest, 0, (int)Math.min(width * height, Math.min(size, dest.length)));
+    } else {
+      for (int y = 0; y < height; y++) {
+        data.read((long)y * stride, dest, y * width, width);
+      }
+    }
+  }
+
+
+  /**
+   * Reads the timestamps of <b>buffer</b> into <b>info</b>.
+   */
+  static void readTiming(Buffer buffer, FrameInfo info) {
+    if (0 <= PTS) {
+      Pointer p = Natives.getRawPointer(buffer);
+      info.presentationTime = p.getLong(PTS);
+      info.duration = p.getLong(DURATION);
+      info.offset = p.getLong(OFFSET);
+    } else {
+      info.presentationTime = buffer.getPresentationTimestamp();
+      info.duration = buffer.getDuration();
+      info.offset = buffer.getOffset();
+    }
+  }
+
+
+  private static long align(long value, int alignment) {
+    return (value + alignment - 1) / alignment * alignment;
+  }
+}
@@ -0,0 +1,62 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for the frames of a Movie or Capture object that bypasses the
+ * pixels array, typically a texture of an OpenGL renderer. Renderers that
+ * implement this interface are called directly. Any other object given to
+ * setBufferSink() must have methods with the same signatures, which are then
+ * looked up and called through reflection.
+ *
+ * NOTE: This is not official API and may/will be removed at any time.
+ */
+public interface BufferSink {
+
+  /**
+   * Tells the sink which Movie or Capture object its frames come from. The
+   * source's disposeBuffer() method must be called with each buffer the sink
+   * got through copyBufferFromSource(), once it's not needed anymore.
+   */
+  void setBufferSource(Object source);
+
+  /**
+   * Hands over a new frame. <b>natRef</b> is the native GStreamer buffer,
+   * and <b>byteBuf</b> the memory it's mapped to.
+   */
+  void copyBufferFromSource(Object natRef, ByteBuffer byteBuf, int w, int h);
+
+  /**
+   * Called after each frame of the sketch, so the sink can give back the
+   * buffers it's done with.
+   */
+  void disposeSourceBuffer();
+
+  /**
+   * Copies the latest frame into <b>pixels</b>, as ARGB.
+   */
+  void getBufferPixels(int[] pixels);
+}
@@ -31,9 +31,13 @@ import processing.core.*;
 
 import java.nio.*;
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.EnumSet;
 import java.util.List;
 import java.lang.reflect.*;
@@ -42,6 +46,9 @@ import org.freedesktop.gstreamer.*;
 import org.freedesktop.gstreamer.Buffer;
 import org.freedesktop.gstreamer.device.*;
 import org.freedesktop.gstreamer.elements.*;
+import org.freedesktop.gstreamer.event.CapsEvent;
+import org.freedesktop.gstreamer.event.Event;
+import org.freedesktop.gstreamer.event.ReconfigureEvent;
 import org.freedesktop.gstreamer.event.SeekFlags;
 import org.freedesktop.gstreamer.event.SeekType;
 
@@ -73,30 +80,97 @@ public class Capture extends PImage implements PConstants {
 
   protected Method captureEventMethod;
   protected Object eventHandler;
+  protected FrameListener<? super Capture>[] frameListeners = newListenerArray(0);
+
+  // Executor the frame events are delivered on, null to call the handlers
+  // directly from the streaming thread.
+  protected volatile Executor eventExecutor;
+  private final AtomicBoolean eventPending = new AtomicBoolean();
+  private final Runnable eventTask = new Runnable() {
+    @Override
+    public void run() {
+      // Cleared before the handlers run, so a frame arriving in the meantime
+      // schedules a new event instead of being missed.
+      eventPending.set(false);
+      if (capturing) {
+        deliverCaptureEvent();
+      }
+    }
+  };
+  private final AtomicLong coalescedEvents = new AtomicLong();
 
   protected boolean available;
   protected boolean ready;
   protected boolean newFrame;
 
   protected AppSink rgbSink = null;
-  protected int[] copyPixels = null;
+  protected int[][] framePixels = new int[TripleBuffer.SLOTS][];
+  protected TripleBuffer frameExchange = new TripleBuffer();
+  protected FrameQueue frameQueue = null;
+
+  // Timing of the frame handed over by the last read(), and of the frames
+  // waiting in the exchange slots, the buffer sink and the lossless queue.
+  protected FrameInfo frameInfo = new FrameInfo();
+  protected FrameInfo[] slotInfo = { new FrameInfo(), new FrameInfo(), new FrameInfo() };
+  private final FrameInfo sinkInfo = new FrameInfo();
+  private final FrameInfo queuedInfo = new FrameInfo();
+  private volatile long pendingArrival;
 
   protected boolean firstFrame = true;
 
   protected boolean useBufferSink = false;
   protected boolean outdatedPixels = true;
   protected Object bufferSink;
-  protected Method sinkCopyMethod;
-  protected Method sinkSetMethod;
-  protected Method sinkDisposeMethod;
-  protected Method sinkGetMethod;
+  protected BufferSink sinkAdapter;
+
+  protected boolean useFrameLeases = false;
+  protected LatestSample leasedSample = new LatestSample(2);
+
+  protected boolean pullOnRead = false;
+  protected final AtomicReference<Sample> pendingSample = new AtomicReference<Sample>();
+
+  // Luma frames share the exchange (and its slot timing) with the RGB ones,
+  // but are kept in their own arrays.
+  protected boolean grayscale = false;
+  protected boolean expandGray = true;
+  protected byte[][] grayPixels = new byte[TripleBuffer.SLOTS][];
+  protected byte[] grayFrame;
+  protected volatile boolean grayCaps = false;
+
+  // Planar formats accepted by the sink when YUV frames are requested, and
+  // the format of the frames it's currently getting.
+  protected String yuvFormats = null;
+  protected volatile boolean yuvCaps = false;
+  protected volatile String sampleFormat;
+
+  // Crop applied before the conversion to RGB, and the region of interest
+  // it's set to. A zero width means no region.
+  protected Element crop;
+  protected int roiX, roiY, roiWidth, roiHeight;
+  protected volatile boolean roiPending = false;
+
+  // Thread count (0 picks one from the frame size), scaling method and
+  // dithering of the converters in the pipeline. -1 keeps GStreamer's
+  // default.
+  protected int convertThreads = 0;
+  protected int scaleMethod = -1;
+  protected int ditherMethod = -1;
+  protected final List<Element> converters = new CopyOnWriteArrayList<Element>();
+
+  // Optional low resolution branch, teed off in front of the main sink.
+  protected AnalysisSink analysisSink;
+  protected Element analysisTee;
+  protected Element analysisQueue;
 
   protected String device;
   protected static List<Device> devices;    // we're caching this list for speed reasons
 
   NewSampleListener newSampleListener;
+  // Only used on the streaming thread
+  private BufferReader frameReader;
   NewPrerollListener newPrerollListener;
-  private final Lock bufferLock = new ReentrantLock();
+  CapsListener capsListener;
+  protected volatile boolean capsChanged = true;
 
 
   /**
@@ -177,6 +251,9 @@ public class Capture extends PImage implements PConstants {
    */
   public void dispose() {
     if (pipeline != null) {
+      releaseFrameQueue();
+      // Events still waiting on the event executor are dropped
+      capturing = false;
       try {
         if (pipeline.isPlaying()) {
           pipeline.stop();
@@ -186,12 +263,17 @@ public class Capture extends PImage implements PConstants {
       }
 
       pixels = null;
+      leasedSample.clear();
+      disposePendingSample();
 
       if (rgbSink != null) {
         rgbSink.disconnect(newSampleListener);
         rgbSink.disconnect(newPrerollListener);
         rgbSink.dispose();
       }
+      if (analysisSink != null) {
+        analysisSink.dispose();
+      }
       pipeline.setState(org.freedesktop.gstreamer.State.NULL);
       pipeline.getState();
       pipeline.getBus().dispose();
@@ -217,182 +299,1224 @@ public class Capture extends PImage implements PConstants {
 
 
   /**
-   * Sets how often frames are read from the capture device. Setting the <b>fps</b>
-   * parameter to 4, for example, will cause 4 frames to be read per second.
-   *
-   * @webref capture
-   * @webBrief Sets how often frames are read from the capture device.
-   * @usage web_application
-   * @param ifps speed of the capture device in frames per second
-   * @brief Sets the target frame rate
+   * Sets how often frames are read from the capture device. Setting the <b>fps</b>
+   * parameter to 4, for example, will cause 4 frames to be read per second.
+   *
+   * @webref capture
+   * @webBrief Sets how often frames are read from the capture device.
+   * @usage web_application
+   * @param ifps speed of the capture device in frames per second
+   * @brief Sets the target frame rate
+   */
+  public void frameRate(float ifps) {
+    float f = (0 < ifps && 0 < frameRate) ? ifps / frameRate : 1;
+
+    long t = pipeline.queryPosition(TimeUnit.NANOSECONDS);
+    long start, stop;
+    if (rate > 0) {
+      start = t;
+      stop = -1;
+    } else {
+      start = 0;
+      stop = t;
+    }
+
+    seek(rate * f, start, stop);
+
+    frameRate = ifps;
+  }
+
+
+  /**
+   * Returns "true" when a new frame from the device is available to read.
+   *
+   * @webref capture
+   * @webBrief Returns "true" when a new frame from the device is available to read.
+   * @usage web_application
+   * @brief Returns "true" when a new frame is available to read.
+   */
+  public boolean available() {
+    return available;
+  }
+
+
+  /**
+   * Starts capturing frames from the selected device.
+   *
+   * @webref capture
+   * @webBrief Starts capturing frames from an attached device.
+   * @usage web_application
+   * @brief Starts video capture
+   */
+  public void start() {
+    setReady();
+
+    engageFrameQueue();
+    pipeline.play();
+    pipeline.getState();
+
+    capturing = true;
+  }
+
+
+  /**
+   * Stops capturing frames from an attached device.
+   *
+   * @webref capture
+   * @webBrief Stops capturing frames from an attached device.
+   * @usage web_application
+   * @brief Stops video capture
+   */
+  public void stop() {
+    setReady();
+
+    releaseFrameQueue();
+    pipeline.stop();
+    pipeline.getState();
+
+    capturing = false;
+  }
+
+
+  /**
+   * Reads the current frame of the device.
+   *
+   * @webref capture
+   * @webBrief Reads the current frame of the device.
+   * @usage web_application
+   * @brief Reads the current frame
+   */
+  public synchronized void read() {
+    if (firstFrame) {
+      super.init(sourceWidth, sourceHeight, RGB, 1);
+      firstFrame = false;
+    }
+
+    if (roiPending) {
+      updateCrop();
+    }
+
+    if (yuvFormats != null) {
+      // Planar frames are read in place through acquireFrame().
+
+    } else if (grayscale) {
+      consumeGray(expandGray);
+
+    } else if (useBufferSink) {
+
+      if (bufferSink == null) {
+        Object cache = parent.g.getCache(Capture.this);
+        if (cache != null) {
+          setBufferSink(cache);
+          getSinkMethods();
+        }
+      }
+      if (pullOnRead && sinkAdapter != null) {
+        copyPendingSample();
+      } else {
+        synchronized (sinkInfo) {
+          frameInfo.set(sinkInfo);
+        }
+      }
+
+    } else if (useFrameLeases) {
+      // Leased frames are read in place, there is nothing to copy.
+
+    } else if (pullOnRead) {
+      copyPendingSample();
+
+    } else if (frameQueue != null) {
+      // In lossless mode every read() hands over the oldest queued frame.
+      int[] frame = frameQueue.poll(frameInfo);
+      if (frame != null) {
+        int[] prev = pixels;
+        pixels = frame;
+        updatePixels();
+        if (prev != null && !isExchangeSlot(prev)) {
+          frameQueue.recycle(prev);
+        }
+      }
+
+    } else {
+      // Only the front slot is handed over to the pixels array, the streaming
+      // thread keeps writing into the other two in the meantime.
+      if (frameExchange.consume() && framePixels[frameExchange.frontIndex()] != null) {
+        pixels = framePixels[frameExchange.frontIndex()];
+        frameInfo.set(slotInfo[frameExchange.frontIndex()]);
+        updatePixels();
+      }
+    }
+
+    updateImageSize();
+
+    available = frameQueue != null && 0 < frameQueue.size();
+    newFrame = true;
+  }
+
+
+  /**
+   * Loads the pixel data for the image into its <b>pixels[]</b> array.
+   */
+  @Override
+  public synchronized void loadPixels() {
+    super.loadPixels();
+
+    if (!grayscale && useBufferSink && sinkAdapter != null) {
+      try {
+        // The sink will copy the latest buffer to the pixels array,
+        // and the pixels will be copied to the texture when the OpenGL
+        // renderer needs to draw it.
+        sinkAdapter.getBufferPixels(pixels);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+
+      outdatedPixels = false;
+    }
+  }
+
+
+  /**
+   * Reads the color of any pixel or grabs a section of an image.
+   */
+  @Override
+  public int get(int x, int y) {
+    if (outdatedPixels) loadPixels();
+    return super.get(x, y);
+  }
+
+
+  /**
+   * @param w width of pixel rectangle to get
+   * @param h height of pixel rectangle to get
+   */
+  public PImage get(int x, int y, int w, int h) {
+    if (outdatedPixels) loadPixels();
+    return super.get(x, y, w, h);
+  }
+
+
+  @Override
+  public PImage copy() {
+    if (outdatedPixels) loadPixels();
+    return super.copy();
+  }
+
+
+  protected void getImpl(int sourceX, int sourceY,
+                         int sourceWidth, int sourceHeight,
+                         PImage target, int targetX, int targetY) {
+    if (outdatedPixels) loadPixels();
+    super.getImpl(sourceX, sourceY, sourceWidth, sourceHeight,
+                  target, targetX, targetY);
+  }
+
+
+  /**
+   * Check if this device object is currently capturing.
+   */
+  public boolean isCapturing() {
+    return capturing;
+  }
+
+
+  /**
+   * Returns the number of frames that were received from the capture device but
+   * replaced by a newer one before read() was called.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long droppedFrames() {
+    return frameExchange.droppedFrames();
+  }
+
+
+  /**
+   * Returns the number of times read() was called without a new frame
+   * having arrived since the previous call.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long repeatedFrames() {
+    return frameExchange.repeatedFrames();
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Frame listeners.
+
+
+  /**
+   * Registers a listener that is called every time a new frame is available,
+   * in addition to the captureEvent() method of the sketch. Unlike captureEvent(),
+   * listeners are called directly, without going through reflection.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param listener listener to add
+   */
+  public synchronized void addFrameListener(FrameListener<? super Capture> listener) {
+    FrameListener<? super Capture>[] listeners = newListenerArray(frameListeners.length + 1);
+    System.arraycopy(frameListeners, 0, listeners, 0, frameListeners.length);
+    listeners[frameListeners.length] = listener;
+    frameListeners = listeners;
+  }
+
+
+  /**
+   * Removes a listener added with addFrameListener().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param listener listener to remove
+   */
+  public synchronized void removeFrameListener(FrameListener<? super Capture> listener) {
+    for (int i = 0; i < frameListeners.length; i++) {
+      if (frameListeners[i] == listener) {
+        FrameListener<? super Capture>[] listeners = newListenerArray(frameListeners.length - 1);
+        System.arraycopy(frameListeners, 0, listeners, 0, i);
+        System.arraycopy(frameListeners, i + 1, listeners, i, listeners.length - i);
+        frameListeners = listeners;
+        return;
+      }
+    }
+  }
+
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static FrameListener<? super Capture>[] newListenerArray(int length) {
+    return new FrameListener[length];
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Event delivery.
+
+
+  /**
+   * Sets the executor used to call captureEvent() and the frame listeners. By default
+   * (or when <b>executor</b> is null) they are called from the GStreamer
+   * streaming thread, so a slow handler holds back the decoding of the next
+   * frames. With an executor the streaming thread only hands the event over.
+   * Events are coalesced: while one is waiting to be handled, new frames don't
+   * schedule another one, so a handler should read all the frames that are
+   * available when it runs.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param executor executor to deliver the events on, or null
+   */
+  public void setEventExecutor(Executor executor) {
+    eventExecutor = executor;
+  }
+
+
+  /**
+   * Returns the executor set with setEventExecutor(), or null if the events
+   * are delivered on the streaming thread.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public Executor getEventExecutor() {
+    return eventExecutor;
+  }
+
+
+  /**
+   * Number of events that were merged into one that was already waiting to be
+   * delivered on the event executor.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long coalescedEvents() {
+    return coalescedEvents.get();
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Frame metadata.
+
+
+  /**
+   * Returns the presentation timestamp, in nanoseconds, of the frame handed
+   * over by the last call to read(), or -1 if the pipeline didn't set one.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long framePresentationTime() {
+    return frameInfo.presentationTime;
+  }
+
+
+  /**
+   * Returns the duration, in nanoseconds, of the frame handed over by the
+   * last call to read(), or -1 if unknown.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long frameDuration() {
+    return frameInfo.duration;
+  }
+
+
+  /**
+   * Returns the offset of the frame handed over by the last call to read()
+   * in the stream, which is usually its frame number, or -1 if unknown.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long frameOffset() {
+    return frameInfo.offset;
+  }
+
+
+  /**
+   * Returns the value of System.nanoTime() at the moment the frame handed
+   * over by the last call to read() arrived from the capture device, or -1 if no
+   * frame has been read yet.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long frameArrivalTime() {
+    return frameInfo.arrivalTime;
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Lossless delivery.
+
+
+  /**
+   * Makes sure that every frame captured by the device is delivered by
+   * read(). The frames are put in a queue, and when the queue is full the
+   * pipeline waits until read() takes a frame out, instead of dropping it.
+   * Note that a live source might still drop frames on its own if it's held
+   * back for too long.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param capacity maximum number of frames waiting to be read
+   */
+  public void enableLossless(int capacity) {
+    FrameQueue prev = frameQueue;
+    frameQueue = new FrameQueue(capacity);
+    if (prev != null) {
+      prev.release();
+    }
+  }
+
+
+  /**
+   * Goes back to delivering only the latest frame in read().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void disableLossless() {
+    FrameQueue prev = frameQueue;
+    frameQueue = null;
+    if (prev != null) {
+      prev.release();
+      prev.clear();
+    }
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public boolean isLossless() {
+    return frameQueue != null;
+  }
+
+
+  /**
+   * Returns the number of frames waiting to be read in lossless mode.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public int queuedFrames() {
+    FrameQueue queue = frameQueue;
+    return queue != null ? queue.size() : 0;
+  }
+
+
+  /**
+   * Returns the total time, in nanoseconds, the pipeline has been waiting
+   * for read() because the queue was full in lossless mode.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long blockedTime() {
+    FrameQueue queue = frameQueue;
+    return queue != null ? queue.blockedNanos() : 0;
+  }
+
+
+  private boolean isExchangeSlot(int[] array) {
+    for (int i = 0; i < framePixels.length; i++) {
+      if (framePixels[i] == array) return true;
+    }
+    return false;
+  }
+
+
+  private void releaseFrameQueue() {
+    FrameQueue queue = frameQueue;
+    if (queue != null) {
+      queue.release();
+    }
+  }
+
+
+  private void engageFrameQueue() {
+    FrameQueue queue = frameQueue;
+    if (queue != null) {
+      queue.engage();
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Pull on read.
+
+
+  /**
+   * Stops copying every new frame as it arrives. Only a reference to the
+   * latest frame is kept instead, and its pixels are copied (or uploaded to
+   * the buffer sink) when read() is called. This saves most of the copying
+   * when read() is called less often than new frames arrive, and lets
+   * readInto() copy each frame only once, straight into its destination.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void enablePullOnRead() {
+    pullOnRead = true;
+  }
+
+
+  /**
+   * Goes back to copying every frame as soon as it arrives.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void disablePullOnRead() {
+    pullOnRead = false;
+    disposePendingSample();
+  }
+
+
+  private void copyPendingSample() {
+    Sample sample = pendingSample.getAndSet(null);
+    if (sample == null) {
+      return;
+    }
+
+    Buffer buffer = sample.getBuffer();
+    frameInfo.set(buffer, pendingArrival);
+    ByteBuffer bb = buffer.map(false);
+    if (bb != null) {
+      if (useBufferSink) {
+        try {
+          sinkAdapter.copyBufferFromSource(buffer, bb, sourceWidth, sourceHeight);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      } else {
+        int count = sourceWidth * sourceHeight;
+        if (pixels == null || pixels.length != count) {
+          pixels = new int[count];
+        }
+        Video.copyRows(bb, sourceWidth, sourceHeight, pixels);
+        updatePixels();
+      }
+      buffer.unmap();
+    }
+    sample.dispose();
+  }
+
+
+  private void disposePendingSample() {
+    Sample sample = pendingSample.getAndSet(null);
+    if (sample != null) {
+      sample.dispose();
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Reading into external memory.
+
+
+  /**
+   * Copies the latest frame of the capture device into <b>dest</b>, without going
+   * through the pixels array, and returns true if there was a new frame to
+   * copy. With pull on read enabled (see enablePullOnRead()) the frame is
+   * copied only once, straight from the GStreamer buffer into <b>dest</b>.
+   * <b>dest</b> needs room for the whole frame, otherwise an
+   * IllegalArgumentException is thrown and the frame is left for later.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param dest array to copy the pixels into
+   */
+  public boolean readInto(int[] dest) {
+    return readInto(dest, Video.LAYOUT_ARGB);
+  }
+
+
+  /**
+   * @param layout one of the Video.LAYOUT_* constants
+   */
+  public boolean readInto(int[] dest, int layout) {
+    return readFrameInto(dest, layout);
+  }
+
+
+  /**
+   * @param dest buffer to copy the pixels into, starting at its position
+   */
+  public boolean readInto(IntBuffer dest) {
+    return readInto(dest, Video.LAYOUT_ARGB);
+  }
+
+
+  public boolean readInto(IntBuffer dest, int layout) {
+    return readFrameInto(dest, layout);
+  }
+
+
+  /**
+   * Copies the frame into a (typically direct) byte buffer, with the bytes of
+   * each pixel in BGRA order unless another layout is given.
+   */
+  public boolean readInto(ByteBuffer dest) {
+    return readInto(dest, Video.LAYOUT_BGRA);
+  }
+
+
+  public boolean readInto(ByteBuffer dest, int layout) {
+    return readFrameInto(dest, layout);
+  }
+
+
+  private synchronized boolean readFrameInto(Object dest, int layout) {
+    // In GL mode the sink hands out RGBA bytes, which are ABGR ints on little
+    // endian machines.
+    boolean swapRB = useBufferSink && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    boolean copied = false;
+    // Checked before any frame is taken, so a mistake doesn't lose one
+    Video.checkRoom(dest, sourceWidth * sourceHeight, layout);
+
+    if (yuvFormats != null) {
+      // There are no RGB pixels to copy from planar frames.
+
+    } else if (grayscale) {
+      if (consumeGray(true)) {
+        copyFrame(IntBuffer.wrap(pixels), pixels.length, false, dest, layout);
+        copied = true;
+      }
+
+    } else if (useFrameLeases) {
+      FrameLease lease = leasedSample.lease();
+      if (lease != null) {
+        try {
+          copyFrame(lease.getPixels(), lease.width() * lease.height(), swapRB, dest, layout);
+          frameInfo.presentationTime = lease.presentationTime();
+          frameInfo.duration = lease.duration();
+          frameInfo.offset = lease.offset();
+          frameInfo.arrivalTime = lease.arrivalTime();
+          copied = true;
+        } finally {
+          lease.release();
+        }
+      }
+
+    } else if (pullOnRead) {
+      Sample sample = pendingSample.getAndSet(null);
+      if (sample != null) {
+        Buffer buffer = sample.getBuffer();
+        frameInfo.set(buffer, pendingArrival);
+        ByteBuffer bb = buffer.map(false);
+        if (bb != null) {
+          try {
+            copyFrame(bb.asIntBuffer(), sourceWidth * sourceHeight, swapRB, dest, layout);
+            copied = true;
+          } finally {
+            buffer.unmap();
+            sample.dispose();
+          }
+        } else {
+          sample.dispose();
+        }
+      }
+
+    } else if (frameQueue != null) {
+      int[] frame = frameQueue.poll(frameInfo);
+      if (frame != null) {
+        copyFrame(IntBuffer.wrap(frame), frame.length, swapRB, dest, layout);
+        frameQueue.recycle(frame);
+        copied = true;
+      }
+
+    } else if (frameExchange.consume() && framePixels[frameExchange.frontIndex()] != null) {
+      // The front slot can't stay out of the pixels array, otherwise the
+      // array in it would eventually be written by the streaming thread.
+      pixels = framePixels[frameExchange.frontIndex()];
+      frameInfo.set(slotInfo[frameExchange.frontIndex()]);
+      updatePixels();
+      copyFrame(IntBuffer.wrap(pixels), pixels.length, swapRB, dest, layout);
+      copied = true;
+    }
+
+    available = frameQueue != null && 0 < frameQueue.size();
+    return copied;
+  }
+
+
+  private void copyFrame(IntBuffer src, int count, boolean swapRB, Object dest, int layout) {
+    Video.checkRoom(dest, count, layout);
+    if (dest instanceof int[]) {
+      Video.copyPixels(src, count, swapRB, true, (int[])dest, layout);
+    } else if (dest instanceof IntBuffer) {
+      Video.copyPixels(src, count, swapRB, true, (IntBuffer)dest, layout);
+    } else {
+      Video.copyPixels(src, count, swapRB, true, (ByteBuffer)dest, layout);
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Frame leasing.
+
+
+  /**
+   * Stops copying new frames into the pixels array, and keeps the latest
+   * frame mapped instead, so it can be read in place with acquireFrame().
+   * At most <b>maxLeases</b> leases can be held at the same time, so that
+   * GStreamer doesn't run out of buffers while the frames are being read.
+   * In P2D and P3D sketches the OpenGL buffer sink is turned off while leases
+   * are enabled, since it would take the frames before they can be leased.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param maxLeases maximum number of outstanding leases
+   */
+  public void enableFrameLeases(int maxLeases) {
+    leasedSample.setMaxLeases(maxLeases);
+    useFrameLeases = true;
+    if (useBufferSink) {
+      useBufferSink = false;
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * Goes back to copying the frames into the pixels array, or into the
+   * OpenGL buffer sink in P2D and P3D sketches. Leases that are still held
+   * remain valid until they are released.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void disableFrameLeases() {
+    useFrameLeases = false;
+    leasedSample.clear();
+    boolean gl = Video.useGLBufferSink && parent.g.isGL();
+    if (gl != useBufferSink) {
+      useBufferSink = gl;
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * Returns a lease on the latest frame of the capture device, or null if there
+   * is no frame yet or too many leases are being held. The lease must be
+   * released once the frame has been read.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public FrameLease acquireFrame() {
+    if (!useFrameLeases && yuvFormats == null) {
+      return null;
+    }
+    return leasedSample.lease();
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public int outstandingLeases() {
+    return leasedSample.outstandingLeases();
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Grayscale output.
+
+
+  /**
+   * Switches the sink to single channel GRAY8 frames, which take a quarter of
+   * the memory of the RGB ones. The luma values of the frame handed over by
+   * read() are returned by getGrayPixels(). When <b>expand</b> is true, read()
+   * also turns them into the gray pixels of this image, otherwise the image
+   * is left as it is. Lossless delivery, pull on read, frame leases and the
+   * OpenGL buffer sink are bypassed while this mode is enabled.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param expand whether read() should update the pixels of this image
+   */
+  public synchronized void enableGrayscale(boolean expand) {
+    expandGray = expand;
+    if (!grayscale) {
+      grayscale = true;
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void enableGrayscale() {
+    enableGrayscale(true);
+  }
+
+
+  /**
+   * Goes back to RGB frames.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void disableGrayscale() {
+    if (grayscale) {
+      grayscale = false;
+      grayFrame = null;
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public boolean isGrayscale() {
+    return grayscale;
+  }
+
+
+  /**
+   * Returns the luma values of the frame handed over by the last read(), one
+   * byte per pixel and row after row without padding, or null if there is
+   * none. The array is reused for later frames, so it should not be kept
+   * around after the next read().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized byte[] getGrayPixels() {
+    return grayFrame;
+  }
+
+
+  /**
+   * Same as getGrayPixels(), wrapped in a read-only buffer.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized ByteBuffer getGrayBuffer() {
+    return grayFrame == null ? null : ByteBuffer.wrap(grayFrame).asReadOnlyBuffer();
+  }
+
+
+  private void updateSinkCaps() {
+    if (rgbSink != null) {
+      rgbSink.setCaps(Caps.fromString("video/x-raw, format=" + sinkFormat()));
+      // Makes upstream negotiate the new format with the sink
+      rgbSink.sendEvent(new ReconfigureEvent());
+    }
+  }
+
+
+  private boolean consumeGray(boolean expand) {
+    if (!frameExchange.consume()) {
+      return false;
+    }
+    int front = frameExchange.frontIndex();
+    byte[] frame = grayPixels[front];
+    if (frame == null) {
+      // Published before the sink switched over to GRAY8
+      return false;
+    }
+    grayFrame = frame;
+    frameInfo.set(slotInfo[front]);
+    if (expand) {
+      if (pixels == null || pixels.length != frame.length || isExchangeSlot(pixels)) {
+        pixels = new int[frame.length];
+      }
+      Video.expandGray(frame, frame.length, pixels);
+      updatePixels();
+    }
+    return true;
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Planar YUV output.
+
+
+  /**
+   * Lets the decoder's I420 or NV12 frames through to the sink, so they don't
+   * have to be converted to RGB. The frames are not copied into this image:
+   * they can only be read with acquireFrame(), plane by plane, with
+   * FrameLease.getPlane() and FrameLease.planeStride(). This mode takes
+   * precedence over the grayscale one, and the OpenGL buffer sink is not
+   * used while it's enabled.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void enableYUV() {
+    setYUVFormats("{ I420, NV12 }");
+  }
+
+
+  /**
+   * Same as enableYUV(), restricting the sink to a single planar format.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param format either "I420" or "NV12"
+   */
+  public void enableYUV(String format) {
+    if (!"I420".equals(format) && !"NV12".equals(format)) {
+      throw new IllegalArgumentException("Unsupported planar format " + format);
+    }
+    setYUVFormats(format);
+  }
+
+
+  /**
+   * Goes back to RGB (or grayscale) frames.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void disableYUV() {
+    if (yuvFormats != null) {
+      yuvFormats = null;
+      if (!useFrameLeases) {
+        leasedSample.clear();
+      }
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public boolean isYUV() {
+    return yuvFormats != null;
+  }
+
+
+  private synchronized void setYUVFormats(String formats) {
+    yuvFormats = formats;
+    updateSinkCaps();
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Region of interest.
+
+
+  /**
+   * Restricts the frames to a region of interest, cropped inside GStreamer
+   * before the conversion to RGB, so the rest of the frame is neither
+   * converted nor copied. The region is given in pixels of the full frame,
+   * and can be changed at any time, in which case the size of this image
+   * follows the size of the region from the next frame on. The analysis
+   * frame, if enabled, is cut from the same region.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param x left edge of the region
+   * @param y top edge of the region
+   * @param w width of the region
+   * @param h height of the region
+   */
+  public synchronized void setROI(int x, int y, int w, int h) {
+    if (crop == null) {
+      PGraphics.showWarning("The videocrop element is not available, the region of interest will be ignored");
+      return;
+    }
+    roiX = x;
+    roiY = y;
+    roiWidth = w;
+    roiHeight = h;
+    updateCrop();
+  }
+
+
+  /**
+   * Goes back to full frames.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void clearROI() {
+    roiWidth = roiHeight = 0;
+    updateCrop();
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
    */
-  public void frameRate(float ifps) {
-    float f = (0 < ifps && 0 < frameRate) ? ifps / frameRate : 1;
+  public synchronized boolean hasROI() {
+    return 0 < roiWidth && 0 < roiHeight;
+  }
 
-    long t = pipeline.queryPosition(TimeUnit.NANOSECONDS);
-    long start, stop;
-    if (rate > 0) {
-      start = t;
-      stop = -1;
-    } else {
-      start = 0;
-      stop = t;
+
+  private void updateCrop() {
+    if (crop == null) {
+      return;
     }
 
-    seek(rate * f, start, stop);
+    // The size of the full frame is only known once the crop has negotiated
+    // its input, until then the region waits for the next read().
+    Caps caps = crop.getStaticPad("sink").getCurrentCaps();
+    if (caps == null) {
+      roiPending = true;
+      return;
+    }
+    Structure struct = caps.getStructure(0);
+    int fullWidth = struct.getInteger("width");
+    int fullHeight = struct.getInteger("height");
+
+    int left = 0, top = 0, right = 0, bottom = 0;
+    if (0 < roiWidth && 0 < roiHeight) {
+      left = PApplet.constrain(roiX, 0, fullWidth - 1);
+      top = PApplet.constrain(roiY, 0, fullHeight - 1);
+      right = fullWidth - left - PApplet.constrain(roiWidth, 1, fullWidth - left);
+      bottom = fullHeight - top - PApplet.constrain(roiHeight, 1, fullHeight - top);
+    }
+    crop.set("left", left);
+    crop.set("top", top);
+    crop.set("right", right);
+    crop.set("bottom", bottom);
+    roiPending = false;
+  }
 
-    frameRate = ifps;
+
+  private void updateImageSize() {
+    // The frames change size along with the region of interest
+    if (pixels != null && pixels.length != width * height &&
+        pixels.length == sourceWidth * sourceHeight) {
+      int[] frame = pixels;
+      super.init(sourceWidth, sourceHeight, RGB, 1);
+      pixels = frame;
+      updatePixels();
+    }
   }
 
 
+  ////////////////////////////////////////////////////////////
+
+  // Analysis frames.
+
+
   /**
-   * Returns "true" when a new frame from the device is available to read.
+   * Adds a second, smaller output to the pipeline. The decoded frames are
+   * split in two inside GStreamer, and the copy that goes to the analysis
+   * output is scaled down to <b>width</b> x <b>height</b> natively, off the
+   * animation thread. The small frames are dropped rather than queued when
+   * they are not read in time, so they never hold back the main ones. The
+   * pipeline can only be changed while it's stopped, so this has to be
+   * called before start() or after stop().
    *
-   * @webref capture
-   * @webBrief Returns "true" when a new frame from the device is available to read.
-   * @usage web_application
-   * @brief Returns "true" when a new frame is available to read.
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param width width of the analysis frames
+   * @param height height of the analysis frames
    */
-  public boolean available() {
-    return available;
+  public void enableAnalysisFrame(int width, int height) {
+    enableAnalysisFrame(width, height, false);
   }
 
 
   /**
-   * Starts capturing frames from the selected device.
+   * Same as enableAnalysisFrame(width, height), with the option of getting
+   * GRAY8 analysis frames. Their luma values are returned by
+   * getAnalysisGray(), and also expanded into the analysis image.
    *
-   * @webref capture
-   * @webBrief Starts capturing frames from an attached device.
-   * @usage web_application
-   * @brief Starts video capture
+   * NOTE: This is not official API and may/will be removed at any time.
    */
-  public void start() {
-    setReady();
-
-    pipeline.play();
-    pipeline.getState();
+  public synchronized void enableAnalysisFrame(int width, int height, boolean gray) {
+    if (!isStopped()) {
+      PGraphics.showWarning("The analysis frame can only be changed while the capture is stopped");
+      return;
+    }
+    disableAnalysisFrame();
 
-    capturing = true;
+    Pad peer = rgbSink.getStaticPad("sink").getPeer();
+    if (peer == null) {
+      return;
+    }
+    Element upstream = peer.getParentElement();
+    analysisSink = new AnalysisSink(width, height, gray);
+
+    // The main sink gets its own queue, otherwise the tee would block when
+    // one branch is prerolled and the other one is not yet.
+    analysisTee = ElementFactory.make("tee", null);
+    analysisQueue = ElementFactory.make("queue", null);
+    upstream.unlink(rgbSink);
+    pipeline.addMany(analysisTee, analysisQueue, analysisSink.bin);
+    Element.linkMany(upstream, analysisTee, analysisQueue, rgbSink);
+    analysisTee.link(analysisSink.bin);
   }
 
 
   /**
-   * Stops capturing frames from an attached device.
+   * Removes the analysis output added with enableAnalysisFrame().
    *
-   * @webref capture
-   * @webBrief Stops capturing frames from an attached device.
-   * @usage web_application
-   * @brief Stops video capture
+   * NOTE: This is not official API and may/will be removed at any time.
    */
-  public void stop() {
-    setReady();
-
-    pipeline.stop();
-    pipeline.getState();
+  public synchronized void disableAnalysisFrame() {
+    if (analysisSink == null) {
+      return;
+    }
+    if (!isStopped()) {
+      PGraphics.showWarning("The analysis frame can only be changed while the capture is stopped");
+      return;
+    }
 
-    capturing = false;
+    Element upstream = analysisTee.getStaticPad("sink").getPeer().getParentElement();
+    upstream.unlink(analysisTee);
+    analysisQueue.unlink(rgbSink);
+    pipeline.removeMany(analysisTee, analysisQueue, analysisSink.bin);
+    upstream.link(rgbSink);
+    analysisTee.dispose();
+    analysisQueue.dispose();
+    analysisTee = analysisQueue = null;
+    analysisSink.dispose();
+    analysisSink = null;
   }
 
 
   /**
-   * Reads the current frame of the device.
+   * Check if a new analysis frame can be read.
    *
-   * @webref capture
-   * @webBrief Reads the current frame of the device.
-   * @usage web_application
-   * @brief Reads the current frame
+   * NOTE: This is not official API and may/will be removed at any time.
    */
-  public synchronized void read() {
-    if (firstFrame) {
-      super.init(sourceWidth, sourceHeight, RGB, 1);
-      firstFrame = false;
-    }
-
-    if (useBufferSink) {
+  public synchronized boolean analysisAvailable() {
+    return analysisSink != null && analysisSink.available();
+  }
 
-      if (bufferSink == null) {
-        Object cache = parent.g.getCache(Capture.this);
-        if (cache != null) {
-          setBufferSink(cache);
-          getSinkMethods();
-        }
-      }
 
-    } else {
-      int[] temp = pixels;
-      pixels = copyPixels;
-      updatePixels();
-      copyPixels = temp;
+  /**
+   * Reads the latest analysis frame, if there is a new one, and returns the
+   * image holding it. The same image is returned every time, so it should be
+   * copied if it has to outlive the next call. Returns null when there is no
+   * analysis output.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized PImage readAnalysisFrame() {
+    if (analysisSink == null) {
+      return null;
     }
-
-    available = false;
-    newFrame = true;
+    analysisSink.read();
+    return analysisSink.image;
   }
 
 
   /**
-   * Loads the pixel data for the image into its <b>pixels[]</b> array.
+   * Returns the luma values of the analysis frame read last, when the
+   * analysis output was enabled in grayscale, or null otherwise.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
    */
-  @Override
-  public synchronized void loadPixels() {
-    super.loadPixels();
+  public synchronized byte[] getAnalysisGray() {
+    return analysisSink == null ? null : analysisSink.grayPixels();
+  }
 
-    if (useBufferSink && bufferSink != null) {
-      try {
-        // sinkGetMethod will copy the latest buffer to the pixels array,
-        // and the pixels will be copied to the texture when the OpenGL
-        // renderer needs to draw it.
-        sinkGetMethod.invoke(bufferSink, new Object[] { pixels });
-      } catch (Exception e) {
-        e.printStackTrace();
-      }
 
-      outdatedPixels = false;
-    }
+  private boolean isStopped() {
+    org.freedesktop.gstreamer.State state = pipeline.getState(0);
+    return state == org.freedesktop.gstreamer.State.NULL ||
+           state == org.freedesktop.gstreamer.State.READY;
   }
 
 
+  ////////////////////////////////////////////////////////////
+
+  // Conversion and scaling.
+
+
   /**
-   * Reads the color of any pixel or grabs a section of an image.
+   * Sets how many threads the videoconvert and videoscale elements of the
+   * pipeline use. With 0, the default, the count follows the frame size:
+   * one thread for frames up to about a megapixel, and up to one per core
+   * for larger ones. Takes effect the next time the pipeline negotiates its
+   * format, for instance when it starts.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param threads number of threads, or 0 for automatic
    */
-  @Override
-  public int get(int x, int y) {
-    if (outdatedPixels) loadPixels();
-    return super.get(x, y);
+  public synchronized void setConversionThreads(int threads) {
+    convertThreads = Math.max(0, threads);
+    configureConverters();
   }
 
 
   /**
-   * @param w width of pixel rectangle to get
-   * @param h height of pixel rectangle to get
+   * Sets the scaling method of the videoscale elements of the pipeline, one
+   * of Video.SCALE_NEAREST, SCALE_BILINEAR, SCALE_4TAP or SCALE_LANCZOS.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
    */
-  public PImage get(int x, int y, int w, int h) {
-    if (outdatedPixels) loadPixels();
-    return super.get(x, y, w, h);
+  public synchronized void setScaleMethod(int method) {
+    scaleMethod = method;
+    configureConverters();
   }
 
 
-  @Override
-  public PImage copy() {
-    if (outdatedPixels) loadPixels();
-    return super.copy();
+  /**
+   * Turns the dithering of the color conversion on (GStreamer's default) or
+   * off. Dithering only matters when converting to fewer bits per channel,
+   * and costs a pass over every frame.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void setDither(boolean dither) {
+    // Bayer is the default dithering of videoconvert
+    ditherMethod = dither ? 4 : 0;
+    configureConverters();
   }
 
 
-  protected void getImpl(int sourceX, int sourceY,
-                         int sourceWidth, int sourceHeight,
-                         PImage target, int targetX, int targetY) {
-    if (outdatedPixels) loadPixels();
-    super.getImpl(sourceX, sourceY, sourceWidth, sourceHeight,
-                  target, targetX, targetY);
+  private void configureConverters() {
+    for (Element element : converters) {
+      configureConverter(element);
+    }
   }
 
 
-  /**
-   * Check if this device object is currently capturing.
-   */
-  public boolean isCapturing() {
-    return capturing;
+  private void configureConverter(Element element) {
+    int w = width, h = height;
+    int threads = 0 < convertThreads ? convertThreads : Video.autoThreads(w, h);
+    Video.configureConverter(element, threads, scaleMethod, ditherMethod);
   }
 
 
@@ -458,32 +1582,34 @@ public class Capture extends PImage implements PConstants {
 
 
   protected void initCustomPipeline(String pstr) {
-    String PIPELINE_END = " ! videorate ! videoscale ! videoconvert ! appsink name=sink";
-
-    pipeline = (Pipeline) Gst.parseLaunch(pstr + PIPELINE_END);
-
     String caps = ", width=" + width + ", height=" + height;
     if (frameRate != 0.0) {
       caps += ", framerate=" + fpsToFramerate(frameRate);
     }
 
+    // The size is fixed before the crop, so the region of interest is not
+    // scaled back up to it. Without videocrop there is no crop at all.
+    String PIPELINE_END = " ! videorate ! videoscale name=capturescale ! video/x-raw" + caps +
+                          (cropAvailable() ? " ! videocrop name=crop" : "") +
+                          " ! videoconvert name=captureconvert ! appsink name=sink";
+
+    pipeline = (Pipeline) Gst.parseLaunch(pstr + PIPELINE_END);
+    crop = pipeline.getElementByName("crop");
+    converters.add(pipeline.getElementByName("capturescale"));
+    converters.add(pipeline.getElementByName("captureconvert"));
+    configureConverters();
+
     rgbSink = (AppSink) pipeline.getElementByName("sink");
     rgbSink.set("emit-signals", true);
     newSampleListener = new NewSampleListener();
     newPrerollListener = new NewPrerollListener();        
     rgbSink.connect(newSampleListener);
     rgbSink.connect(newPrerollListener);
+    capsListener = new CapsListener();
+    rgbSink.getStaticPad("sink").addEventProbe(capsListener);
 
-    useBufferSink = Video.useGLBufferSink && parent.g.isGL();
-    if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
-      if (useBufferSink) {
-        rgbSink.setCaps(Caps.fromString("video/x-raw, format=RGBx" + caps));
-      } else {
-        rgbSink.setCaps(Caps.fromString("video/x-raw, format=BGRx" + caps));
-      }
-    } else {
-      rgbSink.setCaps(Caps.fromString("video/x-raw, format=xRGB" + caps));
-    }
+    useBufferSink = !useFrameLeases && Video.useGLBufferSink && parent.g.isGL();
+    rgbSink.setCaps(Caps.fromString("video/x-raw, format=" + sinkFormat()));
 
     makeBusConnections(pipeline.getBus());
   }
@@ -522,6 +1648,10 @@ public class Capture extends PImage implements PConstants {
     Element videoscale = ElementFactory.make("videoscale", null);
     Element videoconvert = ElementFactory.make("videoconvert", null);
     Element capsfilter = ElementFactory.make("capsfilter", null);
+    crop = cropAvailable() ? ElementFactory.make("videocrop", null) : null;
+    converters.add(videoscale);
+    converters.add(videoconvert);
+    configureConverters();
 
     String frameRateString;
     if (frameRate != 0.0) {
@@ -537,19 +1667,41 @@ public class Capture extends PImage implements PConstants {
 
     pipeline.add(srcElement);
     pipeline.add(videoscale);
-    pipeline.add(videoconvert);
     pipeline.add(capsfilter);
+    if (crop != null) {
+      pipeline.add(crop);
+    }
+    pipeline.add(videoconvert);
     pipeline.add(rgbSink);
 
+    // The frames are cropped before they are converted to RGB, and after
+    // they are scaled to the requested size, so the region of interest is
+    // not scaled back up to it.
     srcElement.link(videoscale);
-    videoscale.link(videoconvert);
-    videoconvert.link(capsfilter);
-    capsfilter.link(rgbSink);
+    videoscale.link(capsfilter);
+    if (crop != null) {
+      capsfilter.link(crop);
+      crop.link(videoconvert);
+    } else {
+      capsfilter.link(videoconvert);
+    }
+    videoconvert.link(rgbSink);
 
     makeBusConnections(pipeline.getBus());
   }
 
 
+  // videocrop comes with gst-plugins-good, which might not be installed. The
+  // capture works without it, only the region of interest is ignored then.
+  private static boolean cropAvailable() {
+    try {
+      return ElementFactory.find("videocrop") != null;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+
   /**
    * Uses a generic object as handler of the capture. This object should have a
    * captureEvent method that receives a Capture argument. This method will
@@ -584,19 +1736,30 @@ public class Capture extends PImage implements PConstants {
     newPrerollListener = new NewPrerollListener();
     rgbSink.connect(newSampleListener);
     rgbSink.connect(newPrerollListener);
+    capsListener = new CapsListener();
+    rgbSink.getStaticPad("sink").addEventProbe(capsListener);
+
+    useBufferSink = !useFrameLeases && Video.useGLBufferSink && parent.g.isGL();
+    rgbSink.setCaps(Caps.fromString("video/x-raw, format=" + sinkFormat()));
+  }
+
 
-    useBufferSink = Video.useGLBufferSink && parent.g.isGL();
-    if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
-      if (useBufferSink) rgbSink.setCaps(Caps.fromString("video/x-raw, format=RGBx"));
-      else rgbSink.setCaps(Caps.fromString("video/x-raw, format=BGRx"));
+  protected String sinkFormat() {
+    if (yuvFormats != null) {
+      return yuvFormats;
+    } else if (grayscale) {
+      return "GRAY8";
+    } else if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+      return useBufferSink ? "RGBx" : "BGRx";
     } else {
-      rgbSink.setCaps(Caps.fromString("video/x-raw, format=xRGB"));
+      return "xRGB";
     }
   }
 
 
   protected void setReady() {
     if (!ready) {
+      releaseFrameQueue();
       pipeline.setState(org.freedesktop.gstreamer.State.READY);
       newFrame = false;
       ready = true;
@@ -630,7 +1793,11 @@ public class Capture extends PImage implements PConstants {
   private void seek(double rate, long start, long stop) {
     Gst.invokeLater(new Runnable() {
       public void run() {
+        // A flushing seek can't go through while the streaming thread is
+        // waiting for room in the lossless queue.
+        releaseFrameQueue();
         boolean res = pipeline.seek(rate, Format.TIME, EnumSet.of(SeekFlags.FLUSH, SeekFlags.ACCURATE), SeekType.SET, start, SeekType.SET, stop);
+        engageFrameQueue();
         if (!res) {
           PGraphics.showWarning("Seek operation failed.");
         }
@@ -640,6 +1807,35 @@ public class Capture extends PImage implements PConstants {
 
 
   private void fireCaptureEvent() {
+    Executor executor = eventExecutor;
+    if (executor == null) {
+      deliverCaptureEvent();
+    } else if (eventPending.compareAndSet(false, true)) {
+      try {
+        executor.execute(eventTask);
+      } catch (RejectedExecutionException e) {
+        eventPending.set(false);
+      }
+    } else {
+      // The previous event hasn't been handled yet, and the handler will see
+      // this frame when it gets to it.
+      coalescedEvents.incrementAndGet();
+    }
+  }
+
+
+  private void deliverCaptureEvent() {
+    FrameListener<? super Capture>[] listeners = frameListeners;
+    for (int i = 0; i < listeners.length; i++) {
+      try {
+        listeners[i].frameAvailable(this);
+      } catch (Exception e) {
+        System.err.println("error, removing frame listener");
+        e.printStackTrace();
+        removeFrameListener(listeners[i]);
+      }
+    }
+
     if (captureEventMethod != null) {
       try {
         captureEventMethod.invoke(eventHandler, this);
@@ -668,6 +1864,7 @@ public class Capture extends PImage implements PConstants {
    */
   public void setBufferSink(Object sink) {
     bufferSink = sink;
+    sinkAdapter = null;
   }
 
 
@@ -688,45 +1885,21 @@ public class Capture extends PImage implements PConstants {
 
 
   protected void getSinkMethods() {
-    try {
-      sinkCopyMethod = bufferSink.getClass().getMethod("copyBufferFromSource",
-        new Class[] { Object.class, ByteBuffer.class, int.class, int.class });
-    } catch (Exception e) {
-      throw new RuntimeException("Capture: provided sink object doesn't have a " +
-                                 "copyBufferFromSource method.");
-    }
-
-    try {
-      sinkSetMethod = bufferSink.getClass().getMethod("setBufferSource",
-        new Class[] { Object.class });
-      sinkSetMethod.invoke(bufferSink, new Object[] { this });
-    } catch (Exception e) {
-      throw new RuntimeException("Capture: provided sink object doesn't have a " +
-                                 "setBufferSource method.");
-    }
-
-    try {
-      sinkDisposeMethod = bufferSink.getClass().getMethod("disposeSourceBuffer",
-        new Class[] { });
-    } catch (Exception e) {
-      throw new RuntimeException("Capture: provided sink object doesn't have " +
-                                 "a disposeSourceBuffer method.");
-    }
-
-    try {
-      sinkGetMethod = bufferSink.getClass().getMethod("getBufferPixels",
-        new Class[] { int[].class });
-    } catch (Exception e) {
-      throw new RuntimeException("Capture: provided sink object doesn't have " +
-                                 "a getBufferPixels method.");
+    if (bufferSink instanceof BufferSink) {
+      sinkAdapter = (BufferSink)bufferSink;
+    } else {
+      // Renderers that don't implement BufferSink are still supported, but
+      // their methods have to be called through reflection.
+      sinkAdapter = new ReflectiveBufferSink(bufferSink, "Capture");
     }
+    sinkAdapter.setBufferSource(this);
   }
 
 
   public synchronized void post() {
-    if (useBufferSink && sinkDisposeMethod != null) {
+    if (useBufferSink && sinkAdapter != null) {
       try {
-        sinkDisposeMethod.invoke(bufferSink, new Object[] {});
+        sinkAdapter.disposeSourceBuffer();
       } catch (Exception e) {
         e.printStackTrace();
       }
@@ -878,67 +2051,154 @@ public class Capture extends PImage implements PConstants {
   }
 
 
+  private void readCaps(Sample sample) {
+    // Pull out metadata from caps
+    Structure capsStruct = sample.getCaps().getStructure(0);
+    sourceWidth = capsStruct.getInteger("width");
+    sourceHeight = capsStruct.getInteger("height");
+    sampleFormat = capsStruct.getString("format");
+    grayCaps = "GRAY8".equals(sampleFormat);
+    yuvCaps = "I420".equals(sampleFormat) || "NV12".equals(sampleFormat);
+    Fraction fps = capsStruct.getFraction("framerate");
+    sourceFrameRate = (float)fps.numerator / fps.denominator;
+
+    // Set the playback rate to the file's native framerate
+    // unless the user has already set a custom one
+    if (frameRate == -1.0) {
+      frameRate = sourceFrameRate;
+    }
+  }
+
+
   private class NewSampleListener implements AppSink.NEW_SAMPLE {
 
     @Override
     public FlowReturn newSample(AppSink sink) {
       Sample sample = sink.pullSample();
+      long arrival = System.nanoTime();
 
-      // Pull out metadata from caps
-      Structure capsStruct = sample.getCaps().getStructure(0);
-      sourceWidth = capsStruct.getInteger("width");
-      sourceHeight = capsStruct.getInteger("height");
-      Fraction fps = capsStruct.getFraction("framerate");
-      sourceFrameRate = (float)fps.numerator / fps.denominator;
+      // The caps are only parsed again after the sink got a caps event
+      if (capsChanged) {
+        capsChanged = false;
+        readCaps(sample);
+      }
 
-      // Set the playback rate to the file's native framerate
-      // unless the user has already set a custom one
-      if (frameRate == -1.0) {
-        frameRate = sourceFrameRate;
+      if (yuvCaps) {
+        // Planar frames are never converted nor copied, they can only be
+        // read through leases.
+        leasedSample.set(sample, sourceWidth, sourceHeight, sampleFormat, arrival);
+        available = true;
+        if (capturing) {
+          fireCaptureEvent();
+        }
+        return FlowReturn.OK;
       }
 
-      Buffer buffer = sample.getBuffer();
-      ByteBuffer bb = buffer.map(false);
-      if (bb != null) {
+      if (frameReader == null) {
+        frameReader = new BufferReader();
+      }
+
+      if (grayCaps) {
+        Buffer buffer = sample.getBuffer();
+        if (frameReader.map(buffer)) {
+          int slot = frameExchange.backIndex();
+          byte[] dest = grayPixels[slot];
+          int count = sourceWidth * sourceHeight;
+          if (dest == null || dest.length != count) {
+            dest = grayPixels[slot] = new byte[count];
+          }
+          frameReader.copyGray(sourceWidth, sourceHeight, dest);
+          slotInfo[slot].set(buffer, arrival);
+          frameReader.unmap();
+          frameExchange.publish();
+
+          available = true;
+          if (capturing) {
+            fireCaptureEvent();
+          }
+        }
+        sample.dispose();
+        return FlowReturn.OK;
+      }
 
-        // If the EDT is still copying data from the buffer, just drop this frame
-        if (!bufferLock.tryLock()) {
-          return FlowReturn.OK;
+      if (useFrameLeases) {
+        // The sample is not copied, but kept mapped until the last lease on
+        // it has been released.
+        leasedSample.set(sample, sourceWidth, sourceHeight, sampleFormat, arrival);
+        available = true;
+        if (capturing) {
+          fireCaptureEvent();
         }
+        return FlowReturn.OK;
+      }
 
+      if (pullOnRead) {
+        // Only the latest sample is kept, and it's copied when read() is
+        // called. The one it replaces is never looked at.
+        pendingArrival = arrival;
+        Sample prev = pendingSample.getAndSet(sample);
+        if (prev != null) {
+          prev.dispose();
+        }
         available = true;
-        if (useBufferSink && bufferSink != null) { // The native buffer from GStreamer is copied to the buffer sink.
+        if (capturing) {
+          fireCaptureEvent();
+        }
+        return FlowReturn.OK;
+      }
+
+      FrameQueue queue = frameQueue;
+      int[] queued = null;
 
+      // Only the buffer sink needs the frame as a ByteBuffer, everything else
+      // reads it through the frame reader, which doesn't allocate.
+      Buffer buffer = sample.getBuffer();
+      boolean toSink = useBufferSink && sinkAdapter != null;
+      ByteBuffer bb = toSink ? buffer.map(false) : null;
+      if (toSink ? bb != null : frameReader.map(buffer)) {
+        if (toSink) { // The native buffer from GStreamer is copied to the buffer sink.
           try {
-            sinkCopyMethod.invoke(bufferSink, new Object[] { buffer, bb, sourceWidth, sourceHeight });
-            if (capturing) {
-              fireCaptureEvent();
-            }
+            sinkAdapter.copyBufferFromSource(buffer, bb, sourceWidth, sourceHeight);
           } catch (Exception e) {
             e.printStackTrace();
-          } finally {
-            bufferLock.unlock();
           }
-
-        } else {
-          IntBuffer rgb = bb.asIntBuffer();
-
-          if (copyPixels == null) {
-            copyPixels = new int[sourceWidth * sourceHeight];
+          synchronized (sinkInfo) {
+            sinkInfo.set(buffer, arrival);
           }
-
-          try {
-            rgb.get(copyPixels, 0, width * height);
-            if (capturing) {
-              fireCaptureEvent();
-            }
-          } finally {
-            bufferLock.unlock();
+        } else if (queue != null) {
+          int count = sourceWidth * sourceHeight;
+          queued = queue.obtain(count);
+          frameReader.copyRows(sourceWidth, sourceHeight, queued);
+          queuedInfo.set(buffer, arrival);
+        } else {
+          // The frame goes into the back slot of the exchange, which is never
+          // touched by read(), so there is no need to lock anything here.
+          int slot = frameExchange.backIndex();
+          int[] dest = framePixels[slot];
+          int count = sourceWidth * sourceHeight;
+          if (dest == null || dest.length != count) {
+            dest = framePixels[slot] = new int[count];
           }
+          frameReader.copyRows(sourceWidth, sourceHeight, dest);
+          slotInfo[slot].set(buffer, arrival);
+          frameExchange.publish();
+        }
+        if (toSink) {
+          buffer.unmap();
+        } else {
+          frameReader.unmap();
+        }
 
+        if (queued != null) {
+          // This is where the streaming thread waits when the queue is full,
+          // holding back the rest of the pipeline until read() catches up.
+          queue.put(queued, queuedInfo);
         }
 
-        buffer.unmap();
+        available = true;
+        if (capturing) {
+          fireCaptureEvent();
+        }
       }
       sample.dispose();
       return FlowReturn.OK;
@@ -946,22 +2206,26 @@ public class Capture extends PImage implements PConstants {
   }
 
 
+  private class CapsListener implements Pad.EVENT_PROBE {
+    @Override
+    public PadProbeReturn eventReceived(Pad pad, Event event) {
+      if (event instanceof CapsEvent) {
+        capsChanged = true;
+      }
+      return PadProbeReturn.OK;
+    }
+  }
+
+
   private class NewPrerollListener implements AppSink.NEW_PREROLL {
     @Override
     public FlowReturn newPreroll(AppSink sink) {
       Sample sample = sink.pullPreroll();
 
-      // Pull out metadata from caps
-      Structure capsStruct = sample.getCaps().getStructure(0);
-      sourceWidth = capsStruct.getInteger("width");
-      sourceHeight = capsStruct.getInteger("height");
-      Fraction fps = capsStruct.getFraction("framerate");
-      sourceFrameRate = (float)fps.numerator / fps.denominator;
-
-      // Set the playback rate to the file's native framerate
-      // unless the user has already set a custom one
-      if (frameRate == -1.0) {
-        frameRate = sourceFrameRate;
+      // The caps are only parsed again after the sink got a caps event
+      if (capsChanged) {
+        capsChanged = false;
+        readCaps(sample);
       }
 
       sample.dispose();
@@ -0,0 +1,43 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import org.freedesktop.gstreamer.Element;
+
+/**
+ * Receives a call every time the playbin of a Movie creates a video decoder,
+ * before the decoder has processed any data. Its properties can be changed
+ * here to tune the decoding of that particular movie:
+ *
+ * <pre>
+ * movie.setDecoderListener((m, decoder) -&gt; decoder.set("max-errors", 10));
+ * </pre>
+ *
+ * The call is made from a GStreamer thread.
+ *
+ * NOTE: This is not official API and may/will be removed at any time.
+ */
+public interface DecoderListener<T> {
+  void decoderCreated(T source, Element decoder);
+}
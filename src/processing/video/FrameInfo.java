@@ -0,0 +1,57 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import org.freedesktop.gstreamer.Buffer;
+
+/**
+ * Timing information of a frame, taken from its GStreamer buffer when it
+ * arrives at the sink. Times are in nanoseconds, and -1 means the value was
+ * not set by the pipeline.
+ */
+class FrameInfo {
+  long presentationTime = -1;
+  long duration = -1;
+  long offset = -1;
+  long arrivalTime = -1;
+
+
+  void set(Buffer buffer, long arrival) {
+    BufferReader.readTiming(buffer, this);
+    arrivalTime = arrival;
+  }
+
+
+  void set(FrameInfo other) {
+    presentationTime = other.presentationTime;
+    duration = other.duration;
+    offset = other.offset;
+    arrivalTime = other.arrivalTime;
+  }
+
+
+  void clear() {
+    presentationTime = duration = offset = arrivalTime = -1;
+  }
+}
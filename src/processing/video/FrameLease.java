@@ -0,0 +1,212 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import org.freedesktop.gstreamer.Sample;
+
+/**
+ * Read-only view of a video frame that is still owned by GStreamer. The frame
+ * memory stays mapped until release() is called, so the pixels can be read
+ * without copying them into a Java array first. Leases should be released as
+ * soon as possible, since a movie or capture device only hands out a limited
+ * number of them at the same time.
+ *
+ * NOTE: This is not official API and may/will be removed at any time.
+ */
+public class FrameLease {
+  private LatestSample owner;
+  private LatestSample.Shared frame;
+
+
+  FrameLease(LatestSample owner, LatestSample.Shared frame) {
+    this.owner = owner;
+    this.frame = frame;
+  }
+
+
+  /**
+   * Width of the leased frame, in pixels.
+   */
+  public int width() {
+    return frame().width;
+  }
+
+
+  /**
+   * Height of the leased frame, in pixels.
+   */
+  public int height() {
+    return frame().height;
+  }
+
+
+  /**
+   * GStreamer name of the format of the leased frame, such as BGRA, I420 or
+   * NV12.
+   */
+  public String format() {
+    return frame().format;
+  }
+
+
+  /**
+   * Presentation timestamp of the leased frame in nanoseconds, or -1 if the
+   * pipeline didn't set one.
+   */
+  public long presentationTime() {
+    return frame().buffer.getPresentationTimestamp();
+  }
+
+
+  /**
+   * Duration of the leased frame in nanoseconds, or -1 if unknown.
+   */
+  public long duration() {
+    return frame().buffer.getDuration();
+  }
+
+
+  /**
+   * Offset of the leased frame in the stream (usually its frame number), or
+   * -1 if unknown.
+   */
+  public long offset() {
+    return frame().buffer.getOffset();
+  }
+
+
+  /**
+   * Value of System.nanoTime() when the leased frame arrived at the sink.
+   */
+  public long arrivalTime() {
+    return frame().arrival;
+  }
+
+
+  /**
+   * Returns a read-only view of the mapped frame memory, in native byte order.
+   */
+  public ByteBuffer getData() {
+    return frame().map().asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+  }
+
+
+  /**
+   * Returns a read-only view of the mapped frame memory as 32-bit pixels. The
+   * channel order is the one negotiated by the sink (BGRA/BGRx on little
+   * endian machines, ARGB/xRGB otherwise).
+   */
+  public IntBuffer getPixels() {
+    return getData().asIntBuffer();
+  }
+
+
+  /**
+   * Number of planes in the leased frame: 3 for I420, 2 for NV12 and 1 for
+   * packed formats.
+   */
+  public int planeCount() {
+    return frame().strides.length;
+  }
+
+
+  /**
+   * Distance in bytes between the starts of two consecutive rows of the given
+   * plane.
+   */
+  public int planeStride(int plane) {
+    return frame().strides[plane];
+  }
+
+
+  /**
+   * Number of rows in the given plane.
+   */
+  public int planeHeight(int plane) {
+    return frame().rows[plane];
+  }
+
+
+  /**
+   * Returns a read-only view of one plane of the mapped frame memory. For
+   * I420 the planes are Y, U and V, for NV12 they are Y and the interleaved
+   * UV samples.
+   */
+  public ByteBuffer getPlane(int plane) {
+    LatestSample.Shared f = frame();
+    ByteBuffer data = f.map().asReadOnlyBuffer();
+    int start = Math.min(f.offsets[plane], data.capacity());
+    int end = Math.min(start + f.strides[plane] * f.rows[plane], data.capacity());
+    data.limit(end);
+    data.position(start);
+    return data.slice();
+  }
+
+
+  /**
+   * Returns the GStreamer sample behind this lease. It belongs to the lease,
+   * so it must not be disposed or modified.
+   */
+  public Sample getSample() {
+    return frame().sample;
+  }
+
+
+  /**
+   * Check if this lease has already been released.
+   */
+  public synchronized boolean isReleased() {
+    return frame == null;
+  }
+
+
+  /**
+   * Gives the frame back to GStreamer. The buffers returned by getData() and
+   * getPixels() must not be used after calling this method.
+   */
+  public void release() {
+    LatestSample.Shared f;
+    synchronized (this) {
+      f = frame;
+      frame = null;
+    }
+    if (f != null) {
+      f.release();
+      owner.returnLease();
+      owner = null;
+    }
+  }
+
+
+  private synchronized LatestSample.Shared frame() {
+    if (frame == null) {
+      throw new IllegalStateException("This frame lease has already been released");
+    }
+    return frame;
+  }
+}
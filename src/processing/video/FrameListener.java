@@ -0,0 +1,39 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+/**
+ * Receives a call every time a Movie or Capture object gets a new frame. This
+ * is the typed counterpart of the movieEvent() and captureEvent() methods of
+ * a sketch, and can be registered as a lambda:
+ *
+ * <pre>
+ * movie.addFrameListener(m -&gt; m.read());
+ * </pre>
+ *
+ * NOTE: This is not official API and may/will be removed at any time.
+ */
+public interface FrameListener<T> {
+  void frameAvailable(T source);
+}
@@ -0,0 +1,202 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames used in lossless mode. When the queue is full, the
+ * GStreamer streaming thread waits in put() until the animation thread takes
+ * a frame out, which in turn stalls the pipeline upstream. The wait is lifted
+ * with release() while the pipeline is changing state, so the streaming
+ * thread can't keep a state change from completing. Frames are never dropped.
+ */
+class FrameQueue {
+  private final int capacity;
+  private final ArrayDeque<int[]> frames;
+  private final ArrayDeque<FrameInfo> infos;
+  private final ArrayDeque<int[]> recycled;
+  private final ArrayDeque<FrameInfo> recycledInfos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private boolean released = false;
+
+  private volatile long blockedNanos;
+
+
+  FrameQueue(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    frames = new ArrayDeque<int[]>(this.capacity);
+    infos = new ArrayDeque<FrameInfo>(this.capacity);
+    recycled = new ArrayDeque<int[]>(this.capacity + 2);
+    recycledInfos = new ArrayDeque<FrameInfo>(this.capacity);
+  }
+
+
+  /**
+   * Returns an array of the given size to copy the next frame into, reusing
+   * the ones that went through the queue before whenever possible.
+   */
+  int[] obtain(int size) {
+    int[] frame;
+    lock.lock();
+    try {
+      frame = recycled.pollFirst();
+    } finally {
+      lock.unlock();
+    }
+    if (frame == null || frame.length != size) {
+      frame = new int[size];
+    }
+    return frame;
+  }
+
+
+  /**
+   * Appends a frame and a copy of its timing information to the queue,
+   * waiting for room if it's full.
+   */
+  void put(int[] frame, FrameInfo info) {
+    lock.lock();
+    try {
+      if (capacity <= frames.size() && !released) {
+        long t0 = System.nanoTime();
+        while (capacity <= frames.size() && !released) {
+          notFull.awaitUninterruptibly();
+        }
+        blockedNanos += System.nanoTime() - t0;
+      }
+      FrameInfo copy = recycledInfos.pollFirst();
+      if (copy == null) {
+        copy = new FrameInfo();
+      }
+      copy.set(info);
+      frames.addLast(frame);
+      infos.addLast(copy);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Takes the oldest frame out of the queue, or returns null if it is empty.
+   * The timing information of the frame is copied into <b>info</b>.
+   */
+  int[] poll(FrameInfo info) {
+    lock.lock();
+    try {
+      int[] frame = frames.pollFirst();
+      if (frame != null) {
+        FrameInfo queued = infos.pollFirst();
+        info.set(queued);
+        recycledInfos.addLast(queued);
+        notFull.signal();
+      }
+      return frame;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Gives back a frame obtained from poll() once it's not needed anymore.
+   */
+  void recycle(int[] frame) {
+    lock.lock();
+    try {
+      if (recycled.size() < capacity + 2) {
+        recycled.addLast(frame);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Stops put() from waiting, so the streaming thread can't block a state
+   * change of the pipeline.
+   */
+  void release() {
+    lock.lock();
+    try {
+      released = true;
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Enables waiting in put() again.
+   */
+  void engage() {
+    lock.lock();
+    try {
+      released = false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  void clear() {
+    lock.lock();
+    try {
+      frames.clear();
+      recycledInfos.addAll(infos);
+      infos.clear();
+      recycled.clear();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  int size() {
+    lock.lock();
+    try {
+      return frames.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  int capacity() {
+    return capacity;
+  }
+
+
+  long blockedNanos() {
+    return blockedNanos;
+  }
+}
@@ -0,0 +1,261 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sorted list of the keyframes seen in a movie file, with their timestamps
+ * and byte offsets. It's filled while the movie plays and saved in a small
+ * binary cache file, so the next time the same file is opened the keyframe
+ * positions are known before the demuxer gets to them. A cache file only
+ * applies to the exact file it was built from: it stores the path, size and
+ * modification time of the movie, and is ignored if any of them changed.
+ */
+class KeyframeIndex {
+  private static final int MAGIC = 0x4B465849;  // "KFXI"
+  private static final int VERSION = 1;
+
+  private final String path;
+  private final long size;
+  private final long modified;
+
+  private long[] times = new long[64];
+  private long[] offsets = new long[64];
+  private int count;
+  private boolean dirty;
+
+
+  KeyframeIndex(File source) {
+    path = source.getAbsolutePath();
+    size = source.length();
+    modified = source.lastModified();
+  }
+
+
+  /**
+   * Adds a keyframe, unless it's already in the index. The offset is the
+   * position of the frame in the file, or -1 if the demuxer didn't set it.
+   */
+  synchronized void add(long time, long offset) {
+    int i = Arrays.binarySearch(times, 0, count, time);
+    if (0 <= i) {
+      return;
+    }
+    i = -i - 1;
+    if (count == times.length) {
+      times = Arrays.copyOf(times, 2 * count);
+      offsets = Arrays.copyOf(offsets, 2 * count);
+    }
+    System.arraycopy(times, i, times, i + 1, count - i);
+    System.arraycopy(offsets, i, offsets, i + 1, count - i);
+    times[i] = time;
+    offsets[i] = offset;
+    count++;
+    dirty = true;
+  }
+
+
+  /**
+   * Returns the time of the last known keyframe at or before <b>time</b>, or
+   * -1 if there is none.
+   */
+  synchronized long before(long time) {
+    int i = Arrays.binarySearch(times, 0, count, time);
+    if (i < 0) {
+      i = -i - 2;
+    }
+    return 0 <= i ? times[i] : -1;
+  }
+
+
+  /**
+   * Returns the byte offset of the keyframe at <b>time</b>, or -1 if it isn't
+   * in the index or its offset is unknown.
+   */
+  synchronized long offset(long time) {
+    int i = Arrays.binarySearch(times, 0, count, time);
+    return 0 <= i ? offsets[i] : -1;
+  }
+
+
+  synchronized int size() {
+    return count;
+  }
+
+
+  synchronized long[] times() {
+    return Arrays.copyOf(times, count);
+  }
+
+
+  /**
+   * Reads the cache file of the movie from <b>dir</b>, merging its keyframes
+   * into this index. Returns false if there is no valid cache for the file.
+   */
+  boolean load(File dir) {
+    File file = cacheFile(dir);
+    if (!file.exists()) {
+      return false;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+          !path.equals(in.readUTF()) || in.readLong() != size ||
+          in.readLong() != modified) {
+        return false;
+      }
+      // The count can't be trusted to be more than the file holds
+      int n = in.readInt();
+      long header = 4 + 4 + utfLength(path) + 8 + 8 + 4;
+      if (n < 0 || (file.length() - header) / 16 < n) {
+        return false;
+      }
+      long[] t = new long[n];
+      long[] o = new long[n];
+      for (int i = 0; i < n; i++) {
+        t[i] = in.readLong();
+        o[i] = in.readLong();
+      }
+      // Nothing is merged until the whole file was read
+      synchronized (this) {
+        boolean wasDirty = dirty;
+        for (int i = 0; i < n; i++) {
+          add(t[i], o[i]);
+        }
+        dirty = wasDirty;
+      }
+      return true;
+    } catch (IOException e) {
+      // A truncated or otherwise broken cache is just rebuilt
+      return false;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) { }
+      }
+    }
+  }
+
+
+  /**
+   * Writes the index to its cache file in <b>dir</b>, if it has keyframes
+   * that weren't in the cache already.
+   */
+  void save(File dir) throws IOException {
+    long[] t, o;
+    int n;
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      t = Arrays.copyOf(times, count);
+      o = Arrays.copyOf(offsets, count);
+      n = count;
+      dirty = false;
+    }
+
+    boolean saved = false;
+    try {
+      write(dir, t, o, n);
+      saved = true;
+    } finally {
+      if (!saved) {
+        // Tried again on the next save
+        synchronized (this) {
+          dirty = true;
+        }
+      }
+    }
+  }
+
+
+  private void write(File dir, long[] t, long[] o, int n) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    // Written to a temporary file first, so a movie opened at the same time
+    // never sees half a cache.
+    File file = cacheFile(dir);
+    File temp = new File(dir, file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(path);
+      out.writeLong(size);
+      out.writeLong(modified);
+      out.writeInt(n);
+      for (int i = 0; i < n; i++) {
+        out.writeLong(t[i]);
+        out.writeLong(o[i]);
+      }
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      file.delete();
+      if (!temp.renameTo(file)) {
+        temp.delete();
+        throw new IOException("Cannot write " + file);
+      }
+    }
+  }
+
+
+  // Bytes taken by the string in writeUTF()'s modified UTF-8
+  private static int utfLength(String str) {
+    int len = 2;
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (0 < c && c < 0x80) {
+        len += 1;
+      } else if (c < 0x800) {
+        len += 2;
+      } else {
+        len += 3;
+      }
+    }
+    return len;
+  }
+
+
+  private File cacheFile(File dir) {
+    // The name only has to tell files apart, the header says which movie the
+    // cache really belongs to.
+    String name = Integer.toHexString(path.hashCode()) + "-" +
+                  Long.toHexString(size) + "-" + Long.toHexString(modified) + ".kfi";
+    return new File(dir, name);
+  }
+}
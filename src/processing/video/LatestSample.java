@@ -0,0 +1,209 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freedesktop.gstreamer.Buffer;
+import org.freedesktop.gstreamer.Sample;
+
+/**
+ * Holds on to the most recent sample pulled from an AppSink, so it can be
+ * handed out as a FrameLease without copying its contents. The sample stays
+ * alive (and mapped, once somebody has looked at it) until the holder and all
+ * the leases on it have let go of it.
+ */
+class LatestSample {
+  private final AtomicReference<Shared> current = new AtomicReference<Shared>();
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private volatile int maxLeases;
+
+
+  LatestSample(int maxLeases) {
+    this.maxLeases = Math.max(1, maxLeases);
+  }
+
+
+  /**
+   * Replaces the current sample, taking ownership of it. The previous one is
+   * released as soon as no lease refers to it anymore.
+   */
+  void set(Sample sample, int width, int height, String format, long arrival) {
+    Shared prev = current.getAndSet(new Shared(sample, width, height, format, arrival));
+    if (prev != null) {
+      prev.release();
+    }
+  }
+
+
+  /**
+   * Returns a lease on the current sample, or null if there is no sample yet
+   * or the maximum number of outstanding leases has been reached.
+   */
+  FrameLease lease() {
+    while (true) {
+      int count = outstanding.get();
+      if (maxLeases <= count) {
+        return null;
+      }
+      if (outstanding.compareAndSet(count, count + 1)) {
+        break;
+      }
+    }
+
+    while (true) {
+      Shared frame = current.get();
+      if (frame == null) {
+        outstanding.decrementAndGet();
+        return null;
+      }
+      // The producer might have released this frame between get() and
+      // retain(), in which case we just look again.
+      if (frame.retain()) {
+        return new FrameLease(this, frame);
+      }
+    }
+  }
+
+
+  void returnLease() {
+    outstanding.decrementAndGet();
+  }
+
+
+  int outstandingLeases() {
+    return outstanding.get();
+  }
+
+
+  void setMaxLeases(int max) {
+    maxLeases = Math.max(1, max);
+  }
+
+
+  /**
+   * Drops the reference the holder keeps on the current sample. Samples that
+   * are still leased are released when their last lease is.
+   */
+  void clear() {
+    Shared prev = current.getAndSet(null);
+    if (prev != null) {
+      prev.release();
+    }
+  }
+
+
+  /**
+   * A reference counted sample. The holder owns one reference, and every
+   * lease on it owns another one.
+   */
+  static class Shared {
+    final Sample sample;
+    final Buffer buffer;
+    final int width;
+    final int height;
+    final String format;
+    final long arrival;
+
+    // Layout of the planes in the buffer, as described by the video format
+    final int[] offsets;
+    final int[] strides;
+    final int[] rows;
+
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private ByteBuffer data;
+
+
+    Shared(Sample sample, int width, int height, String format, long arrival) {
+      this.sample = sample;
+      this.buffer = sample.getBuffer();
+      this.width = width;
+      this.height = height;
+      this.format = format;
+      this.arrival = arrival;
+
+      // The sink doesn't accept video metadata, so upstream has to use the
+      // default GStreamer layout, where every row starts at a multiple of 4
+      // bytes and the chroma planes are subsampled by 2 in both directions.
+      int lumaStride = (width + 3) & ~3;
+      int lumaRows = (height + 1) & ~1;
+      if ("I420".equals(format)) {
+        int chromaStride = (((width + 1) >> 1) + 3) & ~3;
+        strides = new int[] { lumaStride, chromaStride, chromaStride };
+        rows = new int[] { height, lumaRows >> 1, lumaRows >> 1 };
+        offsets = new int[] { 0, lumaStride * lumaRows,
+                              lumaStride * lumaRows + chromaStride * (lumaRows >> 1) };
+      } else if ("NV12".equals(format)) {
+        strides = new int[] { lumaStride, lumaStride };
+        rows = new int[] { height, lumaRows >> 1 };
+        offsets = new int[] { 0, lumaStride * lumaRows };
+      } else if ("GRAY8".equals(format)) {
+        strides = new int[] { lumaStride };
+        rows = new int[] { height };
+        offsets = new int[] { 0 };
+      } else {
+        strides = new int[] { 4 * width };
+        rows = new int[] { height };
+        offsets = new int[] { 0 };
+      }
+    }
+
+
+    boolean retain() {
+      while (true) {
+        int count = refs.get();
+        if (count == 0) {
+          return false;
+        }
+        if (refs.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+
+    synchronized ByteBuffer map() {
+      if (data == null) {
+        data = buffer.map(false);
+      }
+      return data;
+    }
+
+
+    void release() {
+      if (refs.decrementAndGet() == 0) {
+        synchronized (this) {
+          if (data != null) {
+            buffer.unmap();
+            data = null;
+          }
+        }
+        buffer.dispose();
+        sample.dispose();
+      }
+    }
+  }
+}
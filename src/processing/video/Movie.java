@@ -32,16 +32,29 @@ import java.io.*;
 import java.net.URI;
 import java.nio.*;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.lang.reflect.*;
 
 import org.freedesktop.gstreamer.*;
 import org.freedesktop.gstreamer.Buffer;
 import org.freedesktop.gstreamer.elements.*;
+import org.freedesktop.gstreamer.event.CapsEvent;
+import org.freedesktop.gstreamer.event.Event;
+import org.freedesktop.gstreamer.event.ReconfigureEvent;
 import org.freedesktop.gstreamer.event.SeekFlags;
 import org.freedesktop.gstreamer.event.SeekType;
+import org.freedesktop.gstreamer.event.StepEvent;
 
 
 /**
@@ -57,11 +70,36 @@ public class Movie extends PImage implements PConstants {
 
   public String filename;
   public PlayBin playbin;
+
+  /** No reduced-resolution decoding. */
+  public static final int PREVIEW_NONE = 0;
+  /** The decoder itself outputs smaller frames (libav lowres). */
+  public static final int PREVIEW_LOWRES = 1;
+  /** The decoder skips the B-frames (libav skip-frame). */
+  public static final int PREVIEW_SKIP_FRAMES = 2;
+  /** The frames are scaled down right after the decoder. */
+  public static final int PREVIEW_SCALE = 4;
+
+  /** Decoder threads work on different frames. */
+  public static final int THREADS_FRAME = 1;
+  /** Decoder threads work on different slices of the same frame. */
+  public static final int THREADS_SLICE = 2;
+
+  /** jump() decodes up to the exact frame requested. */
+  public static final int SEEK_ACCURATE = 0;
+  /** jump() goes to the keyframe closest to the position requested. */
+  public static final int SEEK_KEYFRAME = 1;
+  /** jump() shows the closest keyframe first, and the exact frame once the
+   *  position stops changing. */
+  public static final int SEEK_TWO_STAGE = 2;
   
   // The source resolution and framerate of the file
   public int sourceWidth;
   public int sourceHeight;
   public float sourceFrameRate;
+  // The exact framerate as a fraction, -1 while unknown
+  protected int fpsNumerator = -1;
+  protected int fpsDenominator = 1;
   
   public float frameRate;             // the current playback fps  
   protected float rate;               // speed multiplier (1.0: frameRate = nativeFrameRate)
@@ -71,30 +109,160 @@ public class Movie extends PImage implements PConstants {
   protected boolean playing = false;
   protected boolean paused = false;
   protected boolean repeat = false;
+  // Range played by loop(), in nanoseconds, with -1 as stop for the end
+  protected volatile long loopStart = 0;
+  protected volatile long loopStop = -1;
 
   protected Method movieEventMethod;
   protected Object eventHandler;
+  protected FrameListener<? super Movie>[] frameListeners = newListenerArray(0);
+
+  // Executor the frame events are delivered on, null to call the handlers
+  // directly from the streaming thread.
+  protected volatile Executor eventExecutor;
+  private final AtomicBoolean eventPending = new AtomicBoolean();
+  private final Runnable eventTask = new Runnable() {
+    @Override
+    public void run() {
+      // Cleared before the handlers run, so a frame arriving in the meantime
+      // schedules a new event instead of being missed.
+      eventPending.set(false);
+      if (playing) {
+        deliverMovieEvent();
+      }
+    }
+  };
+  private final AtomicLong coalescedEvents = new AtomicLong();
 
   protected boolean available;
   protected boolean ready;
   protected boolean newFrame;
 
   protected AppSink rgbSink = null;
-  protected int[] copyPixels = null;
+  protected int[][] framePixels = new int[TripleBuffer.SLOTS][];
+  protected TripleBuffer frameExchange = new TripleBuffer();
+  protected FrameQueue frameQueue = null;
+
+  // Timing of the frame handed over by the last read(), and of the frames
+  // waiting in the exchange slots, the buffer sink and the lossless queue.
+  protected FrameInfo frameInfo = new FrameInfo();
+  protected FrameInfo[] slotInfo = { new FrameInfo(), new FrameInfo(), new FrameInfo() };
+  private final FrameInfo sinkInfo = new FrameInfo();
+  private final FrameInfo queuedInfo = new FrameInfo();
+  private volatile long pendingArrival;
 
   protected boolean firstFrame = true;
 
   protected boolean useBufferSink = false;
   protected boolean outdatedPixels = true;
   protected Object bufferSink;
-  protected Method sinkCopyMethod;
-  protected Method sinkSetMethod;
-  protected Method sinkDisposeMethod;
-  protected Method sinkGetMethod;  
-
-  private NewSampleListener newSampleListener;
+  protected BufferSink sinkAdapter;
+
+  protected boolean useFrameLeases = false;
+  protected LatestSample leasedSample = new LatestSample(2);
+
+  protected boolean pullOnRead = false;
+  protected final AtomicReference<Sample> pendingSample = new AtomicReference<Sample>();
+
+  // Luma frames share the exchange (and its slot timing) with the RGB ones,
+  // but are kept in their own arrays.
+  protected boolean grayscale = false;
+  protected boolean expandGray = true;
+  protected byte[][] grayPixels = new byte[TripleBuffer.SLOTS][];
+  protected byte[] grayFrame;
+  protected volatile boolean grayCaps = false;
+
+  // Planar formats accepted by the sink when YUV frames are requested, and
+  // the format of the frames it's currently getting.
+  protected String yuvFormats = null;
+  protected volatile boolean yuvCaps = false;
+  protected volatile String sampleFormat;
+
+  // Crop applied before the conversion to RGB, and the region of interest
+  // it's set to. A zero width means no region.
+  protected Element crop;
+  protected int roiX, roiY, roiWidth, roiHeight;
+  protected volatile boolean roiPending = false;
+
+  // Thread count (0 picks one from the frame size), scaling method and
+  // dithering of the converters in the pipeline. -1 keeps GStreamer's
+  // default.
+  protected int convertThreads = 0;
+  protected int scaleMethod = -1;
+  protected int ditherMethod = -1;
+  protected final List<Element> converters = new CopyOnWriteArrayList<Element>();
+
+  // Optional low resolution branch, teed off in front of the main sink.
+  protected AnalysisSink analysisSink;
+  protected Bin outputBin;
+
+  // Video filter of the playbin, holding the crop, the preview scaler and
+  // the filter chain set by the user, and the video decoder it picked.
+  protected Bin filterBin;
+  protected Element previewCaps;
+  protected Element filterEnd;
+  protected Element userFilter;
+  protected volatile Element videoDecoder;
+  protected int previewFactor = 1;
+  protected boolean previewSkip = false;
+  protected volatile int previewStrategy = PREVIEW_NONE;
+  protected volatile boolean previewPending = false;
+
+  // Threading of the video decoder, -1 for its default, and the hook called
+  // when it's created.
+  protected int decoderThreads = -1;
+  protected int decoderThreadType = -1;
+  protected volatile DecoderListener<? super Movie> decoderListener;
+
+  // How jump() seeks, and the pending accurate seek of the two-stage mode.
+  protected volatile int seekMode = SEEK_ACCURATE;
+  protected volatile int seekSettle = 150;
+  private ScheduledFuture<?> refineSeek;
+
+  // Latest seek that hasn't been made yet. Only one seek runs at a time, and
+  // the ones requested meanwhile are replaced by the newest. They run on a
+  // thread of their own, as each one waits for the pipeline to preroll and
+  // would otherwise hold up the shared GStreamer executor. The thread goes
+  // away when no seeks are left.
+  private final AtomicReference<SeekTarget> pendingSeek = new AtomicReference<SeekTarget>();
+  private final AtomicBoolean seekRunning = new AtomicBoolean();
+  private final ThreadPoolExecutor seekExecutor = newSeekExecutor();
+  private final Runnable seekTask = new Runnable() {
+    @Override
+    public void run() {
+      runPendingSeeks();
+    }
+  };
+  private final AtomicLong requestedSeeks = new AtomicLong();
+  private final AtomicLong executedSeeks = new AtomicLong();
+  // End of the segment set by the last seek, -1 if it's open. Only used on
+  // the seek thread.
+  private long segmentStop = -1;
+
+  // Keyframes of the file, when the index is enabled, and the file itself if
+  // the movie is local.
+  protected File sourceFile;
+  protected volatile KeyframeIndex keyframeIndex;
+  protected File keyframeCacheDir;
+  private KeyframeListener keyframeListener;
+
+  // Targets closer than this to a known keyframe are cheap to decode, so they
+  // are always reached with an accurate seek.
+  private static final long NEAR_KEYFRAME = 100000000L;
+
+  NewSampleListener newSampleListener;
+  // Only used on the streaming thread
+  private BufferReader frameReader;
   private NewPrerollListener newPrerollListener;
-  private final Lock bufferLock = new ReentrantLock();
+  // A step made while paused, whose frame comes with the next preroll, and
+  // the timestamp of that frame until the movie resumes.
+  private volatile boolean stepPending;
+  private volatile long steppedTime = -1;
+  private final FrameInfo steppedInfo = new FrameInfo();
+  private CapsListener capsListener;
+  private ElementListener elementListener;
+  private PreviewListener previewListener;
+  protected volatile boolean capsChanged = true;
   
 
   /**
@@ -116,6 +284,19 @@ public class Movie extends PImage implements PConstants {
    */
   public void dispose() {
     if (playbin != null) {
+      cancelRefineSeek();
+      // Lets the seek in progress, if any, finish before the pipeline goes
+      pendingSeek.set(null);
+      seekExecutor.shutdown();
+      try {
+        seekExecutor.awaitTermination(2, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      saveKeyframeIndex();
+      releaseFrameQueue();
+      // Events still waiting on the event executor are dropped
+      playing = false;
       try {
         if (playbin.isPlaying()) {
           playbin.stop();
@@ -125,10 +306,15 @@ public class Movie extends PImage implements PConstants {
       }
 
       pixels = null;
+      leasedSample.clear();
+      disposePendingSample();
 
       rgbSink.disconnect(newSampleListener);
       rgbSink.disconnect(newPrerollListener);
       rgbSink.dispose();
+      if (analysisSink != null) {
+        analysisSink.dispose();
+      }
       playbin.setState(org.freedesktop.gstreamer.State.NULL);
       playbin.getState();
       playbin.getBus().dispose();
@@ -169,7 +355,10 @@ public class Movie extends PImage implements PConstants {
     // zero), otherwise we leave it as 1.
     float f = (0 < ifps && 0 < frameRate) ? ifps / frameRate : 1;
     
-    long t = playbin.queryPosition(TimeUnit.NANOSECONDS);
+    // A seek that is still waiting would be replaced by this one, so its
+    // target is where the playback head is going to be.
+    SeekTarget pending = pendingSeek.get();
+    long t = pending != null ? pending.position() : playbin.queryPosition(TimeUnit.NANOSECONDS);
     long start, stop;
     if (rate > 0) {
       start = t;
@@ -241,7 +430,9 @@ public class Movie extends PImage implements PConstants {
   /**
    * Jumps to a specific location within a movie. The parameter <b>where</b>
    * is in terms of seconds. For example, if the movie is 12.2 seconds long,
-   * calling <b>jump(6.1)</b> would go to the middle of the movie.
+   * calling <b>jump(6.1)</b> would go to the middle of the movie. While the
+   * movie loops over a range, set with <b>loop(start, stop)</b> or
+   * <b>setLoopRange()</b>, a location outside of the range jumps to its start.
    *
    * @webref movie
    * @webBrief Jumps to a specific location within a movie.
@@ -260,7 +451,24 @@ public class Movie extends PImage implements PConstants {
     }
 
     long pos = Video.secToNanoLong(where);
-    seek(rate, pos, -1);
+    int mode = seekMode;
+    KeyframeIndex index = keyframeIndex;
+    if (mode != SEEK_ACCURATE && index != null) {
+      long key = index.before(pos);
+      if (key != -1 && pos - key <= NEAR_KEYFRAME) {
+        mode = SEEK_ACCURATE;
+      }
+    }
+    if (mode == SEEK_ACCURATE) {
+      cancelRefineSeek();
+      seek(rate, pos, -1);
+    } else {
+      seek(rate, pos, -1, EnumSet.of(SeekFlags.FLUSH, SeekFlags.KEY_UNIT,
+                                     SeekFlags.SNAP_BEFORE, SeekFlags.SNAP_AFTER));
+      if (mode == SEEK_TWO_STAGE) {
+        scheduleRefineSeek(rate, pos);
+      }
+    }
   }
 
 
@@ -288,6 +496,7 @@ public class Movie extends PImage implements PConstants {
   public void play() {
     setReady();
     
+    engageFrameQueue();
     playbin.play();
     playbin.getState();    
     
@@ -307,6 +516,23 @@ public class Movie extends PImage implements PConstants {
   public void loop() {
     repeat = true;
     play();
+    startLoopSegment();
+  }
+
+
+  /**
+   * Plays the part of the movie between <b>start</b> and <b>stop</b>, in
+   * seconds, continuously. Like the whole movie with loop(), the range wraps
+   * around without a gap.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param start beginning of the loop, in seconds
+   * @param stop end of the loop, in seconds
+   */
+  public void loop(float start, float stop) {
+    setLoopRange(Video.secToNanoLong(start), Video.secToNanoLong(stop));
+    loop();
   }
 
 
@@ -323,7 +549,19 @@ public class Movie extends PImage implements PConstants {
   public void noLoop() {
     setReady();
 
+    boolean looping = repeat;
     repeat = false;
+    if (looping && playing) {
+      // Otherwise the movie would stop at the end of the loop segment, which
+      // might not be the end of the file.
+      SeekTarget pending = pendingSeek.get();
+      long pos = pending != null ? pending.position() : playbin.queryPosition(TimeUnit.NANOSECONDS);
+      if (0 < rate) {
+        seek(rate, pos, -1);
+      } else {
+        seek(rate, 0, pos);
+      }
+    }
   }
 
 
@@ -339,6 +577,7 @@ public class Movie extends PImage implements PConstants {
   public void pause() {
     setReady();
 
+    releaseFrameQueue();
     playbin.pause();
     playbin.getState();    
 
@@ -359,6 +598,8 @@ public class Movie extends PImage implements PConstants {
   public void stop() {
     setReady();
 
+    cancelRefineSeek();
+    releaseFrameQueue();
     playbin.stop();
     playbin.getState();    
     
@@ -381,7 +622,17 @@ public class Movie extends PImage implements PConstants {
       firstFrame = false;
     }
 
-    if (useBufferSink) {
+    if (roiPending) {
+      updateCrop();
+    }
+
+    if (yuvFormats != null) {
+      // Planar frames are read in place through acquireFrame().
+
+    } else if (grayscale) {
+      consumeGray(expandGray);
+
+    } else if (useBufferSink) {
       
       if (bufferSink == null) {
         Object cache = parent.g.getCache(Movie.this);
@@ -391,14 +642,45 @@ public class Movie extends PImage implements PConstants {
         }        
       }
 
+      if (pullOnRead && sinkAdapter != null) {
+        copyPendingSample();
+      } else {
+        synchronized (sinkInfo) {
+          frameInfo.set(sinkInfo);
+        }
+      }
+
+    } else if (useFrameLeases) {
+      // Leased frames are read in place, there is nothing to copy.
+
+    } else if (pullOnRead) {
+      copyPendingSample();
+
+    } else if (frameQueue != null) {
+      // In lossless mode every read() hands over the oldest queued frame.
+      int[] frame = frameQueue.poll(frameInfo);
+      if (frame != null) {
+        int[] prev = pixels;
+        pixels = frame;
+        updatePixels();
+        if (prev != null && !isExchangeSlot(prev)) {
+          frameQueue.recycle(prev);
+        }
+      }
+
     } else {
-      int[] temp = pixels;
-      pixels = copyPixels;
-      updatePixels();
-      copyPixels = temp;      
+      // Only the front slot is handed over to the pixels array, the streaming
+      // thread keeps writing into the other two in the meantime.
+      if (frameExchange.consume() && framePixels[frameExchange.frontIndex()] != null) {
+        pixels = framePixels[frameExchange.frontIndex()];
+        frameInfo.set(slotInfo[frameExchange.frontIndex()]);
+        updatePixels();
+      }      
     }
 
-    available = false;
+    updateImageSize();
+
+    available = frameQueue != null && 0 < frameQueue.size();
     newFrame = true;
   }
 
@@ -425,12 +707,12 @@ public class Movie extends PImage implements PConstants {
   @Override
   public synchronized void loadPixels() {
     super.loadPixels();    
-    if (useBufferSink && bufferSink != null) {
+    if (!grayscale && useBufferSink && sinkAdapter != null) {
       try {
-        // sinkGetMethod will copy the latest buffer to the pixels array,
+        // The sink will copy the latest buffer to the pixels array,
         // and the pixels will be copied to the texture when the OpenGL
         // renderer needs to draw it.
-        sinkGetMethod.invoke(bufferSink, new Object[] { pixels });
+        sinkAdapter.getBufferPixels(pixels);
       } catch (Exception e) {
         e.printStackTrace();
       }      
@@ -500,296 +782,2212 @@ public class Movie extends PImage implements PConstants {
   }
   
   
-  ////////////////////////////////////////////////////////////
-
-  // Initialization methods.
-
-
-  protected void initGStreamer(PApplet parent, String filename) {
-    this.parent = parent;
-
-    Video.init();    
-    playbin = null;
-    
-    File file;
-    
-    // First check to see if this can be read locally from a file.
-    try {      
-      try {
-        // Try a local file using the dataPath. usually this will
-        // work ok, but sometimes the dataPath is inside a jar file,
-        // which is less fun, so this will crap out.
-        file = new File(parent.dataPath(filename));
-        if (file.exists()) {
-          playbin = new PlayBin("Movie Player");
-          playbin.setInputFile(file);
-        }
-      } catch (Exception e) {
-        e.printStackTrace();
-      }
-
-      // Read from a file just hanging out in the local folder.
-      // this might happen when the video library is used with some
-      // other application, or the person enters a full path name
-      if (playbin == null) {
-        try {
-          file = new File(filename);
-          if (file.exists()) {
-            playbin = new PlayBin("Movie Player");
-            playbin.setInputFile(file);
-          }
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
-      }
-
-      if (playbin == null) {
-        // Try network read...
-        for (int i = 0; i < supportedProtocols.length; i++) {
-          if (filename.startsWith(supportedProtocols[i] + "://")) {
-            try {
-              playbin = new PlayBin("Movie Player");
-              playbin.setURI(URI.create(filename));
-              break;
-            } catch (Exception e) {
-              e.printStackTrace();
-            }
-          }
-        }
-      }
-    } catch (SecurityException se) {
-      // online, whups. catch the security exception out here rather than
-      // doing it three times (or whatever) for each of the cases above.
-    }
+  /**
+   * Returns the number of frames that were received from the movie but
+   * replaced by a newer one before read() was called.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long droppedFrames() {
+    return frameExchange.droppedFrames();
+  }
 
-    if (playbin == null) {
-      parent.die("Could not load movie file " + filename, null);
-    }
 
-    initSink();
-    
-    playbin.setVideoSink(rgbSink);
-    makeBusConnections(playbin.getBus());    
-    
-    // We've got a valid movie! let's rock.
-    try {
-      this.filename = filename; // for error messages
+  /**
+   * Returns the number of times read() was called without a new frame
+   * having arrived since the previous call.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long repeatedFrames() {
+    return frameExchange.repeatedFrames();
+  }
 
-      // register methods
-      parent.registerMethod("dispose", this);
-      parent.registerMethod("post", this);
 
-      setEventHandlerObject(parent);
+  ////////////////////////////////////////////////////////////
 
-      sourceWidth = sourceHeight = 0;
-      sourceFrameRate = -1;
-      frameRate = -1;
-      rate = 1.0f;
-      volume = -1;
-      ready = false;      
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-  }
+  // Frame listeners.
 
 
   /**
-   * Uses a generic object as handler of the movie. This object should have a
-   * movieEvent method that receives a Movie argument. This method will
-   * be called upon a new frame read event.
+   * Registers a listener that is called every time a new frame is available,
+   * in addition to the movieEvent() method of the sketch. Unlike movieEvent(),
+   * listeners are called directly, without going through reflection.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
    *
+   * @param listener listener to add
    */
-  protected void setEventHandlerObject(Object obj) {
-    eventHandler = obj;
-
-    try {
-      movieEventMethod = eventHandler.getClass().getMethod("movieEvent", Movie.class);
-      return;
-    } catch (Exception e) {
-      // no such method, or an error... which is fine, just ignore
-    }
-
-    // movieEvent can alternatively be defined as receiving an Object, to allow
-    // Processing mode implementors to support the video library without linking
-    // to it at build-time.
-    try {
-      movieEventMethod = eventHandler.getClass().getMethod("movieEvent", Object.class);
-    } catch (Exception e) {
-      // no such method, or an error... which is fine, just ignore
-    }
+  public synchronized void addFrameListener(FrameListener<? super Movie> listener) {
+    FrameListener<? super Movie>[] listeners = newListenerArray(frameListeners.length + 1);
+    System.arraycopy(frameListeners, 0, listeners, 0, frameListeners.length);
+    listeners[frameListeners.length] = listener;
+    frameListeners = listeners;
   }
 
 
-  protected void initSink() {        
-    rgbSink = new AppSink("movie sink");
-    rgbSink.set("emit-signals", true);
-    newSampleListener = new NewSampleListener();
-    newPrerollListener = new NewPrerollListener();
-    rgbSink.connect(newSampleListener);
-    rgbSink.connect(newPrerollListener);
-
-    useBufferSink = Video.useGLBufferSink && parent.g.isGL();
-    if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
-      if (useBufferSink) {
-        rgbSink.setCaps(Caps.fromString("video/x-raw, format=RGBA"));
-      } else {
-        rgbSink.setCaps(Caps.fromString("video/x-raw, format=BGRA"));
+  /**
+   * Removes a listener added with addFrameListener().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param listener listener to remove
+   */
+  public synchronized void removeFrameListener(FrameListener<? super Movie> listener) {
+    for (int i = 0; i < frameListeners.length; i++) {
+      if (frameListeners[i] == listener) {
+        FrameListener<? super Movie>[] listeners = newListenerArray(frameListeners.length - 1);
+        System.arraycopy(frameListeners, 0, listeners, 0, i);
+        System.arraycopy(frameListeners, i + 1, listeners, i, listeners.length - i);
+        frameListeners = listeners;
+        return;
       }
-    } else {
-      rgbSink.setCaps(Caps.fromString("video/x-raw, format=ARGB"));
-    }
-  }
-  
-  
-  protected void setReady() {
-    if (!ready) {
-      playbin.setState(org.freedesktop.gstreamer.State.READY); 
-      newFrame = false;
-      ready = true;
     }
   }
 
-  
-  private void makeBusConnections(Bus bus) {
-    bus.connect(new Bus.ERROR() {
-      public void errorMessage(GstObject arg0, int arg1, String arg2) {
-        System.err.println(arg0 + " : " + arg2);
-      }
-    });
-    bus.connect(new Bus.EOS() {
-      public void endOfStream(GstObject arg0) {
-        if (repeat) {
-          if (0 < rate) {
-            // Playing forward, so we return to the beginning
-            jump(0);
-          } else {
-            // Playing backwards, so we go to the end.
-            jump(duration());
-          }
 
-          // The rate is set automatically to 1 when restarting the
-          // stream, so we need to call frameRate in order to reset
-          // to the latest fps rate.
-          frameRate(frameRate);
-        } else {
-          playing = false;
-        }
-      }
-    });
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static FrameListener<? super Movie>[] newListenerArray(int length) {
+    return new FrameListener[length];
   }
 
 
-  
   ////////////////////////////////////////////////////////////
 
-  // Stream event handling.
+  // Event delivery.
 
 
-  private void seek(double rate, long start, long stop) {
-    Gst.invokeLater(new Runnable() {
-      public void run() {
-        boolean res;
-        if (stop == -1) {
-          res = playbin.seek(rate, Format.TIME, EnumSet.of(SeekFlags.FLUSH, SeekFlags.ACCURATE), SeekType.SET, start, SeekType.NONE, stop);
-        } else {
-          res = playbin.seek(rate, Format.TIME, EnumSet.of(SeekFlags.FLUSH, SeekFlags.ACCURATE), SeekType.SET, start, SeekType.SET, stop);  
-        }
-        if (!res) {
-          PGraphics.showWarning("Seek operation failed.");
-        }
-      }
-    });    
+  /**
+   * Sets the executor used to call movieEvent() and the frame listeners. By default
+   * (or when <b>executor</b> is null) they are called from the GStreamer
+   * streaming thread, so a slow handler holds back the decoding of the next
+   * frames. With an executor the streaming thread only hands the event over.
+   * Events are coalesced: while one is waiting to be handled, new frames don't
+   * schedule another one, so a handler should read all the frames that are
+   * available when it runs.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param executor executor to deliver the events on, or null
+   */
+  public void setEventExecutor(Executor executor) {
+    eventExecutor = executor;
   }
-  
-  
-  private void fireMovieEvent() {
-    if (movieEventMethod != null) {
-      try {
-        movieEventMethod.invoke(eventHandler, this);
-      } catch (Exception e) {
-        System.err.println("error, disabling movieEvent() for " + filename);
-        e.printStackTrace();
-        movieEventMethod = null;
-      }
-    }
-  }  
-  
 
-  ////////////////////////////////////////////////////////////
 
-  // Buffer source interface.
+  /**
+   * Returns the executor set with setEventExecutor(), or null if the events
+   * are delivered on the streaming thread.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public Executor getEventExecutor() {
+    return eventExecutor;
+  }
 
 
   /**
-   * Sets the object to use as destination for the frames read from the stream.
-   * The color conversion mask is automatically set to the one required to
-   * copy the frames to OpenGL.
-   * 
-   * NOTE: This is not official API and may/will be removed at any time.
+   * Number of events that were merged into one that was already waiting to be
+   * delivered on the event executor.
    *
-   * @param Object dest
+   * NOTE: This is not official API and may/will be removed at any time.
    */
-  public void setBufferSink(Object sink) {
-    bufferSink = sink;
+  public long coalescedEvents() {
+    return coalescedEvents.get();
   }
 
 
+  ////////////////////////////////////////////////////////////
+
+  // Frame metadata.
+
+
   /**
+   * Returns the presentation timestamp, in nanoseconds, of the frame handed
+   * over by the last call to read(), or -1 if the pipeline didn't set one.
+   * Unlike time(), this is the exact time of the frame being shown.
+   *
    * NOTE: This is not official API and may/will be removed at any time.
    */
-  public boolean hasBufferSink() {
-    return bufferSink != null;
+  public long framePresentationTime() {
+    return frameInfo.presentationTime;
   }
 
 
   /**
+   * Returns the duration, in nanoseconds, of the frame handed over by the
+   * last call to read(), or -1 if unknown.
+   *
    * NOTE: This is not official API and may/will be removed at any time.
    */
-  public synchronized void disposeBuffer(Object buf) {
-    ((Buffer)buf).dispose();
+  public long frameDuration() {
+    return frameInfo.duration;
   }
 
 
-  protected void getSinkMethods() {
+  /**
+   * Returns the offset of the frame handed over by the last call to read()
+   * in the stream, which is usually its frame number, or -1 if unknown.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long frameOffset() {
+    return frameInfo.offset;
+  }
+
+
+  /**
+   * Returns the value of System.nanoTime() at the moment the frame handed
+   * over by the last call to read() arrived from the movie, or -1 if no
+   * frame has been read yet.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long frameArrivalTime() {
+    return frameInfo.arrivalTime;
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Lossless delivery.
+
+
+  /**
+   * Makes sure that every frame of the movie is delivered by read(). The
+   * decoded frames are put in a queue, and when the queue is full decoding
+   * waits until read() takes a frame out, instead of dropping it. Frames are
+   * not synced to the clock in this mode, so the movie is processed as fast
+   * as the frames are read.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param capacity maximum number of frames waiting to be read
+   */
+  public void enableLossless(int capacity) {
+    FrameQueue prev = frameQueue;
+    frameQueue = new FrameQueue(capacity);
+    if (prev != null) {
+      prev.release();
+    }
+    // Frames are delivered as fast as they are read, instead of in sync
+    // with the clock.
+    rgbSink.set("sync", false);
+  }
+
+
+  /**
+   * Goes back to delivering only the latest frame in read().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void disableLossless() {
+    FrameQueue prev = frameQueue;
+    frameQueue = null;
+    if (prev != null) {
+      prev.release();
+      prev.clear();
+    }
+    rgbSink.set("sync", true);
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public boolean isLossless() {
+    return frameQueue != null;
+  }
+
+
+  /**
+   * Returns the number of frames waiting to be read in lossless mode.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public int queuedFrames() {
+    FrameQueue queue = frameQueue;
+    return queue != null ? queue.size() : 0;
+  }
+
+
+  /**
+   * Returns the total time, in nanoseconds, the pipeline has been waiting
+   * for read() because the queue was full in lossless mode.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long blockedTime() {
+    FrameQueue queue = frameQueue;
+    return queue != null ? queue.blockedNanos() : 0;
+  }
+
+
+  private boolean isExchangeSlot(int[] array) {
+    for (int i = 0; i < framePixels.length; i++) {
+      if (framePixels[i] == array) return true;
+    }
+    return false;
+  }
+
+
+  private void releaseFrameQueue() {
+    FrameQueue queue = frameQueue;
+    if (queue != null) {
+      queue.release();
+    }
+  }
+
+
+  private void engageFrameQueue() {
+    FrameQueue queue = frameQueue;
+    if (queue != null) {
+      queue.engage();
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Pull on read.
+
+
+  /**
+   * Stops copying every new frame as it arrives. Only a reference to the
+   * latest frame is kept instead, and its pixels are copied (or uploaded to
+   * the buffer sink) when read() is called. This saves most of the copying
+   * when read() is called less often than new frames arrive, and lets
+   * readInto() copy each frame only once, straight into its destination.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void enablePullOnRead() {
+    pullOnRead = true;
+  }
+
+
+  /**
+   * Goes back to copying every frame as soon as it arrives.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void disablePullOnRead() {
+    pullOnRead = false;
+    disposePendingSample();
+  }
+
+
+  private void copyPendingSample() {
+    Sample sample = pendingSample.getAndSet(null);
+    if (sample == null) {
+      return;
+    }
+
+    Buffer buffer = sample.getBuffer();
+    frameInfo.set(buffer, pendingArrival);
+    ByteBuffer bb = buffer.map(false);
+    if (bb != null) {
+      if (useBufferSink) {
+        try {
+          sinkAdapter.copyBufferFromSource(buffer, bb, sourceWidth, sourceHeight);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      } else {
+        int count = sourceWidth * sourceHeight;
+        if (pixels == null || pixels.length != count) {
+          pixels = new int[count];
+        }
+        Video.copyRows(bb, sourceWidth, sourceHeight, pixels);
+        updatePixels();
+      }
+      buffer.unmap();
+    }
+    sample.dispose();
+  }
+
+
+  private void disposePendingSample() {
+    Sample sample = pendingSample.getAndSet(null);
+    if (sample != null) {
+      sample.dispose();
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Reading into external memory.
+
+
+  /**
+   * Copies the latest frame of the movie into <b>dest</b>, without going
+   * through the pixels array, and returns true if there was a new frame to
+   * copy. With pull on read enabled (see enablePullOnRead()) the frame is
+   * copied only once, straight from the GStreamer buffer into <b>dest</b>.
+   * <b>dest</b> needs room for the whole frame, otherwise an
+   * IllegalArgumentException is thrown and the frame is left for later.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param dest array to copy the pixels into
+   */
+  public boolean readInto(int[] dest) {
+    return readInto(dest, Video.LAYOUT_ARGB);
+  }
+
+
+  /**
+   * @param layout one of the Video.LAYOUT_* constants
+   */
+  public boolean readInto(int[] dest, int layout) {
+    return readFrameInto(dest, layout);
+  }
+
+
+  /**
+   * @param dest buffer to copy the pixels into, starting at its position
+   */
+  public boolean readInto(IntBuffer dest) {
+    return readInto(dest, Video.LAYOUT_ARGB);
+  }
+
+
+  public boolean readInto(IntBuffer dest, int layout) {
+    return readFrameInto(dest, layout);
+  }
+
+
+  /**
+   * Copies the frame into a (typically direct) byte buffer, with the bytes of
+   * each pixel in BGRA order unless another layout is given.
+   */
+  public boolean readInto(ByteBuffer dest) {
+    return readInto(dest, Video.LAYOUT_BGRA);
+  }
+
+
+  public boolean readInto(ByteBuffer dest, int layout) {
+    return readFrameInto(dest, layout);
+  }
+
+
+  private synchronized boolean readFrameInto(Object dest, int layout) {
+    // In GL mode the sink hands out RGBA bytes, which are ABGR ints on little
+    // endian machines.
+    boolean swapRB = useBufferSink && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    boolean copied = false;
+    // Checked before any frame is taken, so a mistake doesn't lose one
+    Video.checkRoom(dest, sourceWidth * sourceHeight, layout);
+
+    if (yuvFormats != null) {
+      // There are no RGB pixels to copy from planar frames.
+
+    } else if (grayscale) {
+      if (consumeGray(true)) {
+        copyFrame(IntBuffer.wrap(pixels), pixels.length, false, dest, layout);
+        copied = true;
+      }
+
+    } else if (useFrameLeases) {
+      FrameLease lease = leasedSample.lease();
+      if (lease != null) {
+        try {
+          copyFrame(lease.getPixels(), lease.width() * lease.height(), swapRB, dest, layout);
+          frameInfo.presentationTime = lease.presentationTime();
+          frameInfo.duration = lease.duration();
+          frameInfo.offset = lease.offset();
+          frameInfo.arrivalTime = lease.arrivalTime();
+          copied = true;
+        } finally {
+          lease.release();
+        }
+      }
+
+    } else if (pullOnRead) {
+      Sample sample = pendingSample.getAndSet(null);
+      if (sample != null) {
+        Buffer buffer = sample.getBuffer();
+        frameInfo.set(buffer, pendingArrival);
+        ByteBuffer bb = buffer.map(false);
+        if (bb != null) {
+          try {
+            copyFrame(bb.asIntBuffer(), sourceWidth * sourceHeight, swapRB, dest, layout);
+            copied = true;
+          } finally {
+            buffer.unmap();
+            sample.dispose();
+          }
+        } else {
+          sample.dispose();
+        }
+      }
+
+    } else if (frameQueue != null) {
+      int[] frame = frameQueue.poll(frameInfo);
+      if (frame != null) {
+        copyFrame(IntBuffer.wrap(frame), frame.length, swapRB, dest, layout);
+        frameQueue.recycle(frame);
+        copied = true;
+      }
+
+    } else if (frameExchange.consume() && framePixels[frameExchange.frontIndex()] != null) {
+      // The front slot can't stay out of the pixels array, otherwise the
+      // array in it would eventually be written by the streaming thread.
+      pixels = framePixels[frameExchange.frontIndex()];
+      frameInfo.set(slotInfo[frameExchange.frontIndex()]);
+      updatePixels();
+      copyFrame(IntBuffer.wrap(pixels), pixels.length, swapRB, dest, layout);
+      copied = true;
+    }
+
+    available = frameQueue != null && 0 < frameQueue.size();
+    return copied;
+  }
+
+
+  private void copyFrame(IntBuffer src, int count, boolean swapRB, Object dest, int layout) {
+    Video.checkRoom(dest, count, layout);
+    if (dest instanceof int[]) {
+      Video.copyPixels(src, count, swapRB, false, (int[])dest, layout);
+    } else if (dest instanceof IntBuffer) {
+      Video.copyPixels(src, count, swapRB, false, (IntBuffer)dest, layout);
+    } else {
+      Video.copyPixels(src, count, swapRB, false, (ByteBuffer)dest, layout);
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Frame leasing.
+
+
+  /**
+   * Stops copying new frames into the pixels array, and keeps the latest
+   * frame mapped instead, so it can be read in place with acquireFrame().
+   * At most <b>maxLeases</b> leases can be held at the same time, so that
+   * GStreamer doesn't run out of buffers while the frames are being read.
+   * In P2D and P3D sketches the OpenGL buffer sink is turned off while leases
+   * are enabled, since it would take the frames before they can be leased.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param maxLeases maximum number of outstanding leases
+   */
+  public void enableFrameLeases(int maxLeases) {
+    leasedSample.setMaxLeases(maxLeases);
+    useFrameLeases = true;
+    if (useBufferSink) {
+      useBufferSink = false;
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * Goes back to copying the frames into the pixels array, or into the
+   * OpenGL buffer sink in P2D and P3D sketches. Leases that are still held
+   * remain valid until they are released.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void disableFrameLeases() {
+    useFrameLeases = false;
+    leasedSample.clear();
+    boolean gl = Video.useGLBufferSink && parent.g.isGL();
+    if (gl != useBufferSink) {
+      useBufferSink = gl;
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * Returns a lease on the latest frame of the movie, or null if there
+   * is no frame yet or too many leases are being held. The lease must be
+   * released once the frame has been read.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public FrameLease acquireFrame() {
+    if (!useFrameLeases && yuvFormats == null) {
+      return null;
+    }
+    return leasedSample.lease();
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public int outstandingLeases() {
+    return leasedSample.outstandingLeases();
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Grayscale output.
+
+
+  /**
+   * Switches the sink to single channel GRAY8 frames, which take a quarter of
+   * the memory of the RGB ones. The luma values of the frame handed over by
+   * read() are returned by getGrayPixels(). When <b>expand</b> is true, read()
+   * also turns them into the gray pixels of this image, otherwise the image
+   * is left as it is. Lossless delivery, pull on read, frame leases and the
+   * OpenGL buffer sink are bypassed while this mode is enabled.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param expand whether read() should update the pixels of this image
+   */
+  public synchronized void enableGrayscale(boolean expand) {
+    expandGray = expand;
+    if (!grayscale) {
+      grayscale = true;
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void enableGrayscale() {
+    enableGrayscale(true);
+  }
+
+
+  /**
+   * Goes back to RGB frames.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void disableGrayscale() {
+    if (grayscale) {
+      grayscale = false;
+      grayFrame = null;
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public boolean isGrayscale() {
+    return grayscale;
+  }
+
+
+  /**
+   * Returns the luma values of the frame handed over by the last read(), one
+   * byte per pixel and row after row without padding, or null if there is
+   * none. The array is reused for later frames, so it should not be kept
+   * around after the next read().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized byte[] getGrayPixels() {
+    return grayFrame;
+  }
+
+
+  /**
+   * Same as getGrayPixels(), wrapped in a read-only buffer.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized ByteBuffer getGrayBuffer() {
+    return grayFrame == null ? null : ByteBuffer.wrap(grayFrame).asReadOnlyBuffer();
+  }
+
+
+  private void updateSinkCaps() {
+    if (rgbSink != null) {
+      rgbSink.setCaps(Caps.fromString("video/x-raw, format=" + sinkFormat()));
+      // Makes upstream negotiate the new format with the sink
+      rgbSink.sendEvent(new ReconfigureEvent());
+    }
+  }
+
+
+  private boolean consumeGray(boolean expand) {
+    if (!frameExchange.consume()) {
+      return false;
+    }
+    int front = frameExchange.frontIndex();
+    byte[] frame = grayPixels[front];
+    if (frame == null) {
+      // Published before the sink switched over to GRAY8
+      return false;
+    }
+    grayFrame = frame;
+    frameInfo.set(slotInfo[front]);
+    if (expand) {
+      if (pixels == null || pixels.length != frame.length || isExchangeSlot(pixels)) {
+        pixels = new int[frame.length];
+      }
+      Video.expandGray(frame, frame.length, pixels);
+      updatePixels();
+    }
+    return true;
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Planar YUV output.
+
+
+  /**
+   * Lets the decoder's I420 or NV12 frames through to the sink, so they don't
+   * have to be converted to RGB. The frames are not copied into this image:
+   * they can only be read with acquireFrame(), plane by plane, with
+   * FrameLease.getPlane() and FrameLease.planeStride(). This mode takes
+   * precedence over the grayscale one, and the OpenGL buffer sink is not
+   * used while it's enabled.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void enableYUV() {
+    setYUVFormats("{ I420, NV12 }");
+  }
+
+
+  /**
+   * Same as enableYUV(), restricting the sink to a single planar format.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param format either "I420" or "NV12"
+   */
+  public void enableYUV(String format) {
+    if (!"I420".equals(format) && !"NV12".equals(format)) {
+      throw new IllegalArgumentException("Unsupported planar format " + format);
+    }
+    setYUVFormats(format);
+  }
+
+
+  /**
+   * Goes back to RGB (or grayscale) frames.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void disableYUV() {
+    if (yuvFormats != null) {
+      yuvFormats = null;
+      if (!useFrameLeases) {
+        leasedSample.clear();
+      }
+      updateSinkCaps();
+    }
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public boolean isYUV() {
+    return yuvFormats != null;
+  }
+
+
+  private synchronized void setYUVFormats(String formats) {
+    yuvFormats = formats;
+    updateSinkCaps();
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Region of interest.
+
+
+  /**
+   * Restricts the frames to a region of interest, cropped inside GStreamer
+   * before the conversion to RGB, so the rest of the frame is neither
+   * converted nor copied. The region is given in pixels of the full frame,
+   * and can be changed at any time, in which case the size of this image
+   * follows the size of the region from the next frame on. The analysis
+   * frame, if enabled, is cut from the same region.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param x left edge of the region
+   * @param y top edge of the region
+   * @param w width of the region
+   * @param h height of the region
+   */
+  public synchronized void setROI(int x, int y, int w, int h) {
+    if (crop == null) {
+      PGraphics.showWarning("The videocrop element is not available, the region of interest will be ignored");
+      return;
+    }
+    roiX = x;
+    roiY = y;
+    roiWidth = w;
+    roiHeight = h;
+    updateCrop();
+  }
+
+
+  /**
+   * Goes back to full frames.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void clearROI() {
+    roiWidth = roiHeight = 0;
+    updateCrop();
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized boolean hasROI() {
+    return 0 < roiWidth && 0 < roiHeight;
+  }
+
+
+  private void updateCrop() {
+    if (crop == null) {
+      return;
+    }
+
+    // The size of the full frame is only known once the crop has negotiated
+    // its input, until then the region waits for the next read().
+    Caps caps = crop.getStaticPad("sink").getCurrentCaps();
+    if (caps == null) {
+      roiPending = true;
+      return;
+    }
+    Structure struct = caps.getStructure(0);
+    int fullWidth = struct.getInteger("width");
+    int fullHeight = struct.getInteger("height");
+
+    int left = 0, top = 0, right = 0, bottom = 0;
+    if (0 < roiWidth && 0 < roiHeight) {
+      left = PApplet.constrain(roiX, 0, fullWidth - 1);
+      top = PApplet.constrain(roiY, 0, fullHeight - 1);
+      right = fullWidth - left - PApplet.constrain(roiWidth, 1, fullWidth - left);
+      bottom = fullHeight - top - PApplet.constrain(roiHeight, 1, fullHeight - top);
+    }
+    crop.set("left", left);
+    crop.set("top", top);
+    crop.set("right", right);
+    crop.set("bottom", bottom);
+    roiPending = false;
+  }
+
+
+  private void updateImageSize() {
+    // The frames change size along with the region of interest
+    if (pixels != null && pixels.length != width * height &&
+        pixels.length == sourceWidth * sourceHeight) {
+      int[] frame = pixels;
+      super.init(sourceWidth, sourceHeight, ARGB, 1);
+      pixels = frame;
+      updatePixels();
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Preview quality.
+
+
+  /**
+   * Decodes the movie at a fraction of its resolution, for previews and
+   * thumbnails. <b>factor</b> is the reduction in both directions, 1 (full
+   * resolution), 2, 4 or 8. Decoders that can output smaller frames are
+   * asked to do so (libav's lowres). With any other decoder, or when it
+   * doesn't get all the way down, the frames are scaled natively right
+   * after decoding. previewStrategy() tells which of these was used. This
+   * has to be called before play() or after stop().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param factor reduction factor
+   */
+  public void setPreviewQuality(int factor) {
+    setPreviewQuality(factor, false);
+  }
+
+
+  /**
+   * Same as setPreviewQuality(factor), also letting the decoder skip the
+   * B-frames, when it supports it (libav's skip-frame). Fewer frames are
+   * shown, but they cost a lot less to decode.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void setPreviewQuality(int factor, boolean skipFrames) {
+    if (factor != 1 && factor != 2 && factor != 4 && factor != 8) {
+      throw new IllegalArgumentException("The preview factor must be 1, 2, 4 or 8");
+    }
+    if (!isStopped()) {
+      PGraphics.showWarning("The preview quality can only be changed while the movie is stopped");
+      return;
+    }
+    previewFactor = factor;
+    previewSkip = skipFrames;
+    previewStrategy = PREVIEW_NONE;
+    if (videoDecoder != null) {
+      configureDecoder(videoDecoder);
+    }
+    if (previewCaps != null && factor == 1) {
+      previewCaps.set("caps", Caps.anyCaps());
+    }
+    previewPending = true;
+  }
+
+
+  /**
+   * Returns the ways the resolution is being reduced, as a combination of
+   * PREVIEW_LOWRES, PREVIEW_SKIP_FRAMES and PREVIEW_SCALE, or PREVIEW_NONE.
+   * The strategy is only known once the movie has started playing.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public int previewStrategy() {
+    return previewStrategy;
+  }
+
+
+  private void configureDecoder(Element decoder) {
+    List<String> props = decoder.listPropertyNames();
+    if (0 <= decoderThreads && props.contains("max-threads")) {
+      decoder.set("max-threads", decoderThreads);
+    }
+    if (0 < decoderThreadType && props.contains("thread-type")) {
+      decoder.set("thread-type", decoderThreadType);
+    }
+    if (props.contains("lowres")) {
+      // 0 is full resolution, 1 half and 2 a quarter, which is as far as
+      // libav goes. The preview scaler takes an eighth the rest of the way.
+      decoder.set("lowres", Math.min(2, Integer.numberOfTrailingZeros(previewFactor)));
+    }
+    if (props.contains("skip-frame")) {
+      // 1 skips the B-frames, 0 nothing
+      decoder.set("skip-frame", previewSkip ? 1 : 0);
+    }
+  }
+
+
+  private void updatePreviewScale(Pad pad) {
+    Caps caps = pad.getCurrentCaps();
+    if (caps == null || previewCaps == null) {
+      return;
+    }
+    previewPending = false;
+
+    int strategy = PREVIEW_NONE;
+    Structure struct = caps.getStructure(0);
+    int inWidth = struct.getInteger("width");
+    int inHeight = struct.getInteger("height");
+
+    // How much the decoder already reduced the frames, compared with the
+    // size of the encoded stream
+    float reduced = 1;
+    Element decoder = videoDecoder;
+    if (decoder != null) {
+      Caps coded = decoder.getStaticPad("sink").getCurrentCaps();
+      Caps decoded = decoder.getStaticPad("src").getCurrentCaps();
+      if (coded != null && decoded != null &&
+          coded.getStructure(0).hasIntField("width")) {
+        reduced = (float)coded.getStructure(0).getInteger("width") /
+                  decoded.getStructure(0).getInteger("width");
+      }
+    }
+    if (1.5f < reduced) {
+      strategy |= PREVIEW_LOWRES;
+    }
+    // Only reported if the decoder kept the setting
+    if (decoder != null && decoder.listPropertyNames().contains("skip-frame")) {
+      Object skip = decoder.get("skip-frame");
+      if (skip instanceof Number && ((Number)skip).intValue() != 0) {
+        strategy |= PREVIEW_SKIP_FRAMES;
+      }
+    }
+
+    float remaining = previewFactor / reduced;
+    if (1.5f < remaining) {
+      int w = Math.max(1, Math.round(inWidth / remaining));
+      int h = Math.max(1, Math.round(inHeight / remaining));
+      previewCaps.set("caps", Caps.fromString("video/x-raw, width=" + w + ", height=" + h));
+      strategy |= PREVIEW_SCALE;
+    } else {
+      previewCaps.set("caps", Caps.anyCaps());
+    }
+    previewStrategy = strategy;
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Seeking.
+
+
+  /**
+   * Sets how jump() moves the playback head. SEEK_ACCURATE (the default)
+   * decodes everything from the previous keyframe up to the exact position,
+   * which can take a while on long-GOP video. SEEK_KEYFRAME goes to the
+   * closest keyframe instead, which is fast but not exact. SEEK_TWO_STAGE
+   * does the keyframe seek right away and an accurate one once jump() hasn't
+   * been called for a short while, so scrubbing is responsive and still ends
+   * on the right frame.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param mode SEEK_ACCURATE, SEEK_KEYFRAME or SEEK_TWO_STAGE
+   */
+  public void setSeekMode(int mode) {
+    if (mode < SEEK_ACCURATE || SEEK_TWO_STAGE < mode) {
+      throw new IllegalArgumentException("Unknown seek mode " + mode);
+    }
+    seekMode = mode;
+    if (mode != SEEK_TWO_STAGE) {
+      cancelRefineSeek();
+    }
+  }
+
+
+  /**
+   * Sets the seek mode, and for SEEK_TWO_STAGE the time in milliseconds the
+   * position has to stay the same before the accurate seek is made.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void setSeekMode(int mode, int settleMillis) {
+    seekSettle = Math.max(0, settleMillis);
+    setSeekMode(mode);
+  }
+
+
+  /**
+   * Returns the current seek mode.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public int seekMode() {
+    return seekMode;
+  }
+
+
+  /**
+   * Number of seeks requested so far by jump(), frameRate() and speed().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long requestedSeeks() {
+    return requestedSeeks.get();
+  }
+
+
+  /**
+   * Number of seeks actually made. Seeks requested while another one is
+   * still running are merged, and only the latest of them is made, so this
+   * is lower than requestedSeeks() when jump() is called faster than the
+   * movie can seek.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long executedSeeks() {
+    return executedSeeks.get();
+  }
+
+
+  private synchronized void scheduleRefineSeek(final double rate, final long pos) {
+    if (refineSeek != null) {
+      refineSeek.cancel(false);
+    }
+    refineSeek = Gst.getExecutor().schedule(new Runnable() {
+      public void run() {
+        seek(rate, pos, -1);
+      }
+    }, seekSettle, TimeUnit.MILLISECONDS);
+  }
+
+
+  private synchronized void cancelRefineSeek() {
+    if (refineSeek != null) {
+      refineSeek.cancel(false);
+      refineSeek = null;
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Frame navigation.
+
+
+  /**
+   * Returns the numerator of the exact framerate of the movie, such as 30000
+   * for a 29.97 fps (30000/1001) file, or -1 if it isn't known yet or the
+   * movie has a variable framerate.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public int sourceFrameRateNumerator() {
+    return fpsNumerator;
+  }
+
+
+  /**
+   * Returns the denominator of the exact framerate of the movie.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public int sourceFrameRateDenominator() {
+    return fpsDenominator;
+  }
+
+
+  /**
+   * Returns the length of the movie in nanoseconds, or -1 if unknown.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long durationNanos() {
+    return playbin.queryDuration(TimeUnit.NANOSECONDS);
+  }
+
+
+  /**
+   * Returns the location of the playback head in nanoseconds, or -1 if
+   * unknown.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long timeNanos() {
+    return playbin.queryPosition(TimeUnit.NANOSECONDS);
+  }
+
+
+  /**
+   * Returns the number of frames in the movie, computed from its duration and
+   * exact framerate, or -1 if either isn't known yet.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long frameCount() {
+    long nanos = durationNanos();
+    if (nanos <= 0 || fpsNumerator <= 0) {
+      return -1;
+    }
+    return nanosToFrame(nanos);
+  }
+
+
+  /**
+   * Returns the index, starting at 0, of the frame handed over by the last
+   * call to read(), or -1 if it isn't known. The index comes from the
+   * timestamp of the frame, so it's exact even on long movies.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long currentFrame() {
+    long pts = frameInfo.presentationTime;
+    if (pts < 0 || fpsNumerator <= 0) {
+      return -1;
+    }
+    return nanosToFrame(pts);
+  }
+
+
+  /**
+   * Jumps to the frame with the given index, starting at 0. This always makes
+   * an accurate seek, whatever the seek mode.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param frame index of the frame to show
+   */
+  public void jumpToFrame(long frame) {
+    if (fpsNumerator <= 0) {
+      PGraphics.showWarning("The framerate of the movie is not known yet");
+      return;
+    }
+    long count = frameCount();
+    if (0 < count && count <= frame) {
+      frame = count - 1;
+    }
+    setReady();
+    cancelRefineSeek();
+    seek(rate, frameToNanos(Math.max(0, frame)), -1);
+  }
+
+
+  /**
+   * Moves one frame forward.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void step() {
+    step(1);
+  }
+
+
+  /**
+   * Moves the given number of frames forward, or backwards if negative. When
+   * the movie is paused and playing forward, the video sink skips the frames
+   * with a step event, which doesn't flush the pipeline, and the frame it
+   * stops on is available to read() right away. Other cases, such as going
+   * backwards, need a seek.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param frames number of frames to move
+   */
+  public void step(int frames) {
+    if (frames == 0) {
+      return;
+    }
+    SeekTarget pending = pendingSeek.get();
+    if (paused && 0 < rate && 0 < frames && pending == null && !seekRunning.get()) {
+      // Sent to the video sink alone, so the audio isn't stepped by buffers
+      stepPending = true;
+      if (rgbSink.sendEvent(new StepEvent(Format.BUFFERS, frames, 1.0, true, false))) {
+        return;
+      }
+      stepPending = false;
+    }
+    // A seek that hasn't been made yet is where the playback head is going
+    long current = pending != null && 0 < fpsNumerator ? nanosToFrame(pending.position()) : currentFrame();
+    if (current < 0) {
+      return;
+    }
+    jumpToFrame(Math.max(0, current + frames));
+  }
+
+
+  private long nanosToFrame(long nanos) {
+    // Rounded to the nearest frame, since containers store the timestamps
+    // with limited precision.
+    long unit = fpsDenominator * 1000000000L;
+    return (nanos * fpsNumerator + unit / 2) / unit;
+  }
+
+
+  private long frameToNanos(long frame) {
+    // The middle of the frame, so an accurate seek lands on it even if its
+    // timestamp was rounded.
+    return ((2 * frame + 1) * fpsDenominator * 1000000000L) / (2L * fpsNumerator);
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Keyframe index.
+
+
+  /**
+   * Starts recording the keyframes of the movie while it plays, and loads the
+   * ones found in earlier sessions from the cache. With the keyframe
+   * positions known, jump() in SEEK_KEYFRAME or SEEK_TWO_STAGE mode goes
+   * straight to the exact frame when it's close to a keyframe, since there is
+   * little to decode then. The index is saved when the movie is disposed. It
+   * only works with local files, and has to be enabled before play().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void enableKeyframeIndex() {
+    enableKeyframeIndex(new File(System.getProperty("java.io.tmpdir"), "processing-video-index"));
+  }
+
+
+  /**
+   * Enables the keyframe index, keeping the cache files in <b>cacheDir</b>.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void enableKeyframeIndex(File cacheDir) {
+    if (sourceFile == null) {
+      PGraphics.showWarning("The keyframe index is only available for local files");
+      return;
+    }
+    if (keyframeIndex != null) {
+      return;
+    }
+    KeyframeIndex index = new KeyframeIndex(sourceFile);
+    index.load(cacheDir);
+    keyframeCacheDir = cacheDir;
+    keyframeIndex = index;
+    Element decoder = videoDecoder;
+    if (decoder != null) {
+      indexKeyframes(decoder);
+    }
+  }
+
+
+  /**
+   * Saves the keyframe index and stops recording keyframes.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void disableKeyframeIndex() {
+    saveKeyframeIndex();
+    keyframeIndex = null;
+  }
+
+
+  /**
+   * Returns the timestamps, in nanoseconds, of the keyframes known so far, or
+   * an empty array if the index is not enabled.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long[] keyframeTimes() {
+    KeyframeIndex index = keyframeIndex;
+    return index != null ? index.times() : new long[0];
+  }
+
+
+  private synchronized void indexKeyframes(Element decoder) {
+    if (keyframeListener == null) {
+      keyframeListener = new KeyframeListener();
+    }
+    decoder.getStaticPad("sink").addDataProbe(keyframeListener);
+  }
+
+
+  private synchronized void saveKeyframeIndex() {
+    if (keyframeIndex != null) {
+      try {
+        keyframeIndex.save(keyframeCacheDir);
+      } catch (IOException e) {
+        PGraphics.showWarning("Cannot save the keyframe index: " + e.getMessage());
+      }
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Loop range.
+
+
+  /**
+   * Sets the part of the movie that loop() plays, in nanoseconds. A stop of
+   * -1 means the end of the movie. If the movie is already looping, it jumps
+   * into the new range right away, unless it's inside it already.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param start beginning of the loop, in nanoseconds
+   * @param stop end of the loop, in nanoseconds, or -1
+   */
+  public void setLoopRange(long start, long stop) {
+    if (start < 0 || (stop != -1 && stop <= start)) {
+      throw new IllegalArgumentException("Invalid loop range " + start + " - " + stop);
+    }
+    loopStart = start;
+    loopStop = stop;
+    if (repeat && playing) {
+      startLoopSegment();
+    }
+  }
+
+
+  /**
+   * Makes loop() play the whole movie again.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void clearLoopRange() {
+    setLoopRange(0, -1);
+  }
+
+
+  /**
+   * Returns the beginning of the loop range, in nanoseconds.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long loopStart() {
+    return loopStart;
+  }
+
+
+  /**
+   * Returns the end of the loop range, in nanoseconds, or -1 for the end of
+   * the movie.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public long loopStop() {
+    return loopStop;
+  }
+
+
+  private void startLoopSegment() {
+    // Continues from where the movie is, which seek() moves into the loop
+    // range if it's outside.
+    SeekTarget pending = pendingSeek.get();
+    long pos = pending != null ? pending.position() : playbin.queryPosition(TimeUnit.NANOSECONDS);
+    if (0 < rate) {
+      seek(rate, Math.max(0, pos), -1);
+    } else {
+      seek(rate, 0, pos);
+    }
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Decoder settings.
+
+
+  /**
+   * Sets the maximum number of threads the video decoder may use, with 0
+   * letting it use one per core. This is how one movie can be given all the
+   * cores while others are held to a single thread. Only decoders that have
+   * a max-threads property (libav) are affected, and the setting is picked
+   * up when the decoder is created, so this has to be called before play()
+   * or after stop().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param threads maximum number of decoding threads, or 0 for automatic
+   */
+  public synchronized void setDecoderThreads(int threads) {
+    decoderThreads = Math.max(0, threads);
+  }
+
+
+  /**
+   * Sets how the decoder spreads its work over threads: THREADS_FRAME,
+   * THREADS_SLICE or both. Frame threading is faster but adds a frame of
+   * latency per thread.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void setDecoderThreadType(int type) {
+    decoderThreadType = type;
+  }
+
+
+  /**
+   * Sets a hook that is called, from a GStreamer thread, every time the
+   * playbin creates a video decoder for this movie, after the settings above
+   * have been applied and before it decodes anything. Any other property of
+   * the decoder can be set there.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public void setDecoderListener(DecoderListener<? super Movie> listener) {
+    decoderListener = listener;
+  }
+
+
+  /**
+   * Changes the rank of a decoder (or any element factory) in the GStreamer
+   * registry, which decides the one the playbin picks when several can
+   * handle a stream. The highest rank wins, for reference PRIMARY is 256 and
+   * MARGINAL 64, and 0 keeps it from being picked at all. Ranks are global,
+   * so this affects every movie created afterwards.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param factoryName name of the element factory, such as "avdec_h264"
+   * @param rank new rank
+   */
+  public static void setDecoderRank(String factoryName, int rank) {
+    Video.init();
+    ElementFactory factory = ElementFactory.find(factoryName);
+    if (factory == null) {
+      PGraphics.showWarning("There is no GStreamer element called " + factoryName);
+      return;
+    }
+    factory.setRank(rank);
+  }
+
+
+  /**
+   * Returns the name of the element factory of the video decoder, and the
+   * threading and preview settings it ended up with, or null if no decoder
+   * has been created yet.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public String decoderInfo() {
+    Element decoder = videoDecoder;
+    if (decoder == null) {
+      return null;
+    }
+    StringBuilder info = new StringBuilder(decoder.getFactory().getName());
+    List<String> props = decoder.listPropertyNames();
+    for (String prop : new String[] { "max-threads", "thread-type", "lowres", "skip-frame" }) {
+      if (props.contains(prop)) {
+        info.append(' ').append(prop).append('=').append(decoder.get(prop));
+      }
+    }
+    return info.toString();
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Filter chain.
+
+
+  /**
+   * Runs the decoded frames through a chain of GStreamer elements, given in
+   * gst-launch syntax (for instance "videoflip method=horizontal-flip" or
+   * "videobalance saturation=0"), before they are converted to RGB. The chain
+   * runs natively on the streaming threads, after the region of interest
+   * and the preview scaling, and can be replaced at any time, even while the
+   * movie is playing. Elements that only handle some formats should be
+   * preceded by a videoconvert in the chain. Pass null to remove the chain.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param description filter chain in gst-launch syntax
+   */
+  public void setFilter(String description) {
+    if (description == null || description.trim().isEmpty()) {
+      setFilter((Element)null);
+    } else {
+      setFilter(Gst.parseBinFromDescription(description, true));
+    }
+  }
+
+
+  /**
+   * Same as setFilter(description), with an element (or a bin with one sink
+   * and one source pad) built by the caller.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param filter element to filter the frames with, or null
+   */
+  public synchronized void setFilter(final Element filter) {
+    if (filterBin == null) {
+      PGraphics.showWarning("The video filter could not be created, the filter will be ignored");
+      return;
+    }
+    final Element prev = userFilter;
+    userFilter = filter;
+
+    // The chain is swapped once no buffer is going through the pad in front
+    // of it, which happens right away when the movie isn't playing.
+    previewCaps.getStaticPad("src").block(new Runnable() {
+      @Override
+      public void run() {
+        if (prev != null) {
+          previewCaps.unlink(prev);
+          prev.unlink(filterEnd);
+          prev.setState(org.freedesktop.gstreamer.State.NULL);
+          filterBin.remove(prev);
+        } else {
+          previewCaps.unlink(filterEnd);
+        }
+
+        if (filter != null) {
+          filterBin.add(filter);
+          Element.linkMany(previewCaps, filter, filterEnd);
+          filter.syncStateWithParent();
+        } else {
+          previewCaps.link(filterEnd);
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Returns the filter chain set with setFilter(), or null.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized Element getFilter() {
+    return userFilter;
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Analysis frames.
+
+
+  /**
+   * Adds a second, smaller output to the pipeline. The decoded frames are
+   * split in two inside GStreamer, and the copy that goes to the analysis
+   * output is scaled down to <b>width</b> x <b>height</b> natively, off the
+   * animation thread. The small frames are dropped rather than queued when
+   * they are not read in time, so they never hold back the main ones. The
+   * pipeline can only be changed while it's stopped, so this has to be
+   * called before play() or after stop().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param width width of the analysis frames
+   * @param height height of the analysis frames
+   */
+  public void enableAnalysisFrame(int width, int height) {
+    enableAnalysisFrame(width, height, false);
+  }
+
+
+  /**
+   * Same as enableAnalysisFrame(width, height), with the option of getting
+   * GRAY8 analysis frames. Their luma values are returned by
+   * getAnalysisGray(), and also expanded into the analysis image.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void enableAnalysisFrame(int width, int height, boolean gray) {
+    if (!isStopped()) {
+      PGraphics.showWarning("The analysis frame can only be changed while the movie is stopped");
+      return;
+    }
+    disableAnalysisFrame();
+
+    analysisSink = new AnalysisSink(width, height, gray);
+
+    // The main sink gets its own queue, otherwise the tee would block when
+    // one branch is prerolled and the other one is not yet.
+    Element tee = ElementFactory.make("tee", null);
+    Element queue = ElementFactory.make("queue", null);
+    outputBin = new Bin("movie output");
+    outputBin.addMany(tee, queue, rgbSink, analysisSink.bin);
+    Element.linkMany(tee, queue, rgbSink);
+    tee.link(analysisSink.bin);
+    outputBin.addPad(new GhostPad("sink", tee.getStaticPad("sink")));
+    playbin.setVideoSink(outputBin);
+  }
+
+
+  /**
+   * Removes the analysis output added with enableAnalysisFrame().
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void disableAnalysisFrame() {
+    if (analysisSink == null) {
+      return;
+    }
+    if (!isStopped()) {
+      PGraphics.showWarning("The analysis frame can only be changed while the movie is stopped");
+      return;
+    }
+
+    outputBin.remove(rgbSink);
+    playbin.setVideoSink(rgbSink);
+    outputBin.dispose();
+    outputBin = null;
+    analysisSink.dispose();
+    analysisSink = null;
+  }
+
+
+  /**
+   * Check if a new analysis frame can be read.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized boolean analysisAvailable() {
+    return analysisSink != null && analysisSink.available();
+  }
+
+
+  /**
+   * Reads the latest analysis frame, if there is a new one, and returns the
+   * image holding it. The same image is returned every time, so it should be
+   * copied if it has to outlive the next call. Returns null when there is no
+   * analysis output.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized PImage readAnalysisFrame() {
+    if (analysisSink == null) {
+      return null;
+    }
+    analysisSink.read();
+    return analysisSink.image;
+  }
+
+
+  /**
+   * Returns the luma values of the analysis frame read last, when the
+   * analysis output was enabled in grayscale, or null otherwise.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized byte[] getAnalysisGray() {
+    return analysisSink == null ? null : analysisSink.grayPixels();
+  }
+
+
+  private boolean isStopped() {
+    org.freedesktop.gstreamer.State state = playbin.getState(0);
+    return state == org.freedesktop.gstreamer.State.NULL ||
+           state == org.freedesktop.gstreamer.State.READY;
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Conversion and scaling.
+
+
+  /**
+   * Sets how many threads the videoconvert and videoscale elements of the
+   * pipeline use. With 0, the default, the count follows the frame size:
+   * one thread for frames up to about a megapixel, and up to one per core
+   * for larger ones. Takes effect the next time the pipeline negotiates its
+   * format, for instance when it starts.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param threads number of threads, or 0 for automatic
+   */
+  public synchronized void setConversionThreads(int threads) {
+    convertThreads = Math.max(0, threads);
+    configureConverters();
+  }
+
+
+  /**
+   * Sets the scaling method of the videoscale elements of the pipeline, one
+   * of Video.SCALE_NEAREST, SCALE_BILINEAR, SCALE_4TAP or SCALE_LANCZOS.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void setScaleMethod(int method) {
+    scaleMethod = method;
+    configureConverters();
+  }
+
+
+  /**
+   * Turns the dithering of the color conversion on (GStreamer's default) or
+   * off. Dithering only matters when converting to fewer bits per channel,
+   * and costs a pass over every frame.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void setDither(boolean dither) {
+    // Bayer is the default dithering of videoconvert
+    ditherMethod = dither ? 4 : 0;
+    configureConverters();
+  }
+
+
+  private void configureConverters() {
+    for (Element element : converters) {
+      configureConverter(element);
+    }
+  }
+
+
+  private void configureConverter(Element element) {
+    // The size of the decoded frames is known by the time the converters of
+    // the playbin are created.
+    int w = sourceWidth, h = sourceHeight;
+    Element decoder = videoDecoder;
+    if (w <= 0 && decoder != null) {
+      Caps caps = decoder.getStaticPad("src").getCurrentCaps();
+      if (caps != null) {
+        w = caps.getStructure(0).getInteger("width");
+        h = caps.getStructure(0).getInteger("height");
+      }
+    }
+    int threads = 0 < convertThreads ? convertThreads : Video.autoThreads(w, h);
+    Video.configureConverter(element, threads, scaleMethod, ditherMethod);
+  }
+
+
+  ////////////////////////////////////////////////////////////
+
+  // Initialization methods.
+
+
+  protected void initGStreamer(PApplet parent, String filename) {
+    this.parent = parent;
+
+    Video.init();    
+    playbin = null;
+    
+    File file;
+    
+    // First check to see if this can be read locally from a file.
+    try {      
+      try {
+        // Try a local file using the dataPath. usually this will
+        // work ok, but sometimes the dataPath is inside a jar file,
+        // which is less fun, so this will crap out.
+        file = new File(parent.dataPath(filename));
+        if (file.exists()) {
+          playbin = new PlayBin("Movie Player");
+          playbin.setInputFile(file);
+          sourceFile = file;
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+
+      // Read from a file just hanging out in the local folder.
+      // this might happen when the video library is used with some
+      // other application, or the person enters a full path name
+      if (playbin == null) {
+        try {
+          file = new File(filename);
+          if (file.exists()) {
+            playbin = new PlayBin("Movie Player");
+            playbin.setInputFile(file);
+            sourceFile = file;
+          }
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+
+      if (playbin == null) {
+        // Try network read...
+        for (int i = 0; i < supportedProtocols.length; i++) {
+          if (filename.startsWith(supportedProtocols[i] + "://")) {
+            try {
+              playbin = new PlayBin("Movie Player");
+              playbin.setURI(URI.create(filename));
+              break;
+            } catch (Exception e) {
+              e.printStackTrace();
+            }
+          }
+        }
+      }
+    } catch (SecurityException se) {
+      // online, whups. catch the security exception out here rather than
+      // doing it three times (or whatever) for each of the cases above.
+    }
+
+    if (playbin == null) {
+      parent.die("Could not load movie file " + filename, null);
+    }
+
+    initSink();
+    initFilter();
+    
+    playbin.setVideoSink(rgbSink);
+    makeBusConnections(playbin.getBus());    
+    
+    // We've got a valid movie! let's rock.
+    try {
+      this.filename = filename; // for error messages
+
+      // register methods
+      parent.registerMethod("dispose", this);
+      parent.registerMethod("post", this);
+
+      setEventHandlerObject(parent);
+
+      sourceWidth = sourceHeight = 0;
+      sourceFrameRate = -1;
+      frameRate = -1;
+      rate = 1.0f;
+      volume = -1;
+      ready = false;      
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+
+  /**
+   * Uses a generic object as handler of the movie. This object should have a
+   * movieEvent method that receives a Movie argument. This method will
+   * be called upon a new frame read event.
+   *
+   */
+  protected void setEventHandlerObject(Object obj) {
+    eventHandler = obj;
+
+    try {
+      movieEventMethod = eventHandler.getClass().getMethod("movieEvent", Movie.class);
+      return;
+    } catch (Exception e) {
+      // no such method, or an error... which is fine, just ignore
+    }
+
+    // movieEvent can alternatively be defined as receiving an Object, to allow
+    // Processing mode implementors to support the video library without linking
+    // to it at build-time.
+    try {
+      movieEventMethod = eventHandler.getClass().getMethod("movieEvent", Object.class);
+    } catch (Exception e) {
+      // no such method, or an error... which is fine, just ignore
+    }
+  }
+
+
+  protected void initSink() {        
+    rgbSink = new AppSink("movie sink");
+    rgbSink.set("emit-signals", true);
+    newSampleListener = new NewSampleListener();
+    newPrerollListener = new NewPrerollListener();
+    rgbSink.connect(newSampleListener);
+    rgbSink.connect(newPrerollListener);
+    capsListener = new CapsListener();
+    rgbSink.getStaticPad("sink").addEventProbe(capsListener);
+
+    useBufferSink = !useFrameLeases && Video.useGLBufferSink && parent.g.isGL();
+    rgbSink.setCaps(Caps.fromString("video/x-raw, format=" + sinkFormat()));
+  }
+
+
+  protected void initFilter() {
+    // The crop, the preview scaler and the user's filter chain go in as the
+    // video filter of the playbin, which places them in front of the
+    // conversion to RGB. Without a region of interest, a preview quality or
+    // a filter they don't touch the frames. The identity at the end is where
+    // the user's chain is attached.
     try {
-      sinkCopyMethod = bufferSink.getClass().getMethod("copyBufferFromSource",
-        new Class[] { Object.class, ByteBuffer.class, int.class, int.class });
+      filterBin = Gst.parseBinFromDescription(
+        "videocrop name=crop ! videoscale name=previewscale ! " +
+        "capsfilter name=previewcaps ! identity name=filterend", true);
+      crop = filterBin.getElementByName("crop");
+      previewCaps = filterBin.getElementByName("previewcaps");
+      filterEnd = filterBin.getElementByName("filterend");
+      converters.add(filterBin.getElementByName("previewscale"));
+      previewListener = new PreviewListener();
+      Pad pad = filterBin.getElementByName("previewscale").getStaticPad("sink");
+      pad.addEventProbe(previewListener);
+      pad.addDataProbe(previewListener);
+      playbin.set("video-filter", filterBin);
     } catch (Exception e) {
-      throw new RuntimeException("Movie: provided sink object doesn't have a " +
-                                 "copyBufferFromSource method.");
+      filterBin = null;
+      crop = previewCaps = filterEnd = null;
+    }
+
+    elementListener = new ElementListener();
+    playbin.connect((Bin.DEEP_ELEMENT_ADDED) elementListener);
+    playbin.connect((Bin.DEEP_ELEMENT_REMOVED) elementListener);
+  }
+
+
+  protected String sinkFormat() {
+    if (yuvFormats != null) {
+      return yuvFormats;
+    } else if (grayscale) {
+      return "GRAY8";
+    } else if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+      return useBufferSink ? "RGBA" : "BGRA";
+    } else {
+      return "ARGB";
+    }
+  }
+  
+  
+  protected void setReady() {
+    if (!ready) {
+      releaseFrameQueue();
+      playbin.setState(org.freedesktop.gstreamer.State.READY); 
+      newFrame = false;
+      ready = true;
     }
+  }
 
-    try {
-      sinkSetMethod = bufferSink.getClass().getMethod("setBufferSource",
-        new Class[] { Object.class });
-      sinkSetMethod.invoke(bufferSink, new Object[] { this });
-    } catch (Exception e) {
-      throw new RuntimeException("Movie: provided sink object doesn't have a " +
-                                 "setBufferSource method.");
+  
+  private void makeBusConnections(Bus bus) {
+    bus.connect(new Bus.ERROR() {
+      public void errorMessage(GstObject arg0, int arg1, String arg2) {
+        System.err.println(arg0 + " : " + arg2);
+      }
+    });
+    bus.connect(new Bus.EOS() {
+      public void endOfStream(GstObject arg0) {
+        if (repeat) {
+          // Only reached when the loop segment was lost, after stop() for
+          // instance. A single seek restarts it from the beginning (or the
+          // end, when playing backwards) of the loop range.
+          seek(rate, loopStart, loopStop);
+        } else {
+          playing = false;
+        }
+      }
+    });
+    bus.connect(new Bus.SEGMENT_DONE() {
+      public void segmentDone(GstObject source, Format format, long position) {
+        if (!repeat) {
+          playing = false;
+        } else {
+          // Queues the next round right behind the current one, without
+          // flushing, so there is no gap. A seek already running or waiting
+          // starts a new segment anyway, so it's kept.
+          seek(rate, loopStart, loopStop, EnumSet.of(SeekFlags.ACCURATE, SeekFlags.SEGMENT), false);
+        }
+      }
+    });
+  }
+
+
+  
+  ////////////////////////////////////////////////////////////
+
+  // Stream event handling.
+
+
+  private void seek(double rate, long start, long stop) {
+    seek(rate, start, stop, EnumSet.of(SeekFlags.FLUSH, SeekFlags.ACCURATE));
+  }
+
+
+  private void seek(double rate, long start, long stop, EnumSet<SeekFlags> flags) {
+    seek(rate, start, stop, flags, true);
+  }
+
+
+  /**
+   * Queues a seek. Unless <b>replace</b> is true, nothing happens when another
+   * seek is running or waiting to be made.
+   */
+  private void seek(double rate, long start, long stop, EnumSet<SeekFlags> flags,
+                    boolean replace) {
+    if (repeat) {
+      // While looping every seek is a segment seek inside the loop range, so
+      // the end of the range is signaled with SEGMENT_DONE instead of EOS.
+      flags = EnumSet.copyOf(flags);
+      flags.add(SeekFlags.SEGMENT);
+      long a = loopStart;
+      long b = loopStop;
+      // Without a range the whole movie loops, and any position is in it
+      if (a != 0 || b != -1) {
+        if (start < a || (b != -1 && b <= start)) {
+          start = a;
+        }
+        // A stop of -1 means the end of the movie
+        if (stop == -1 || stop <= start || (b != -1 && b < stop)) {
+          stop = b;
+        }
+      }
     }
-    
-    try {
-      sinkDisposeMethod = bufferSink.getClass().getMethod("disposeSourceBuffer", 
-        new Class[] { });
-    } catch (Exception e) {
-      throw new RuntimeException("Movie: provided sink object doesn't have " +
-                                 "a disposeSourceBuffer method.");
+    SeekTarget target = new SeekTarget(rate, start, stop, flags);
+    if (replace) {
+      pendingSeek.set(target);
+      requestedSeeks.incrementAndGet();
+      if (!seekRunning.compareAndSet(false, true)) {
+        return;
+      }
+    } else {
+      // The seek task is claimed first, so this one never follows a seek
+      // that is already running.
+      if (!seekRunning.compareAndSet(false, true)) {
+        return;
+      }
+      // Otherwise a seek came in right now, and only needs the task started
+      if (pendingSeek.compareAndSet(null, target)) {
+        requestedSeeks.incrementAndGet();
+      }
     }
-        
     try {
-      sinkGetMethod = bufferSink.getClass().getMethod("getBufferPixels", 
-        new Class[] { int[].class });
-    } catch (Exception e) {
-      throw new RuntimeException("Movie: provided sink object doesn't have " +
-                                 "a getBufferPixels method.");
-    }    
+      seekExecutor.execute(seekTask);
+    } catch (RejectedExecutionException e) {
+      // Disposed
+      pendingSeek.set(null);
+      seekRunning.set(false);
+    }
+  }
+
+
+  private static ThreadPoolExecutor newSeekExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Movie seek");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+
+  private void runPendingSeeks() {
+    while (true) {
+      SeekTarget target;
+      while ((target = pendingSeek.getAndSet(null)) != null) {
+        doSeek(target);
+      }
+      seekRunning.set(false);
+      // Somebody might have asked for a seek after the last check, and found
+      // the flag still set.
+      if (pendingSeek.get() == null || !seekRunning.compareAndSet(false, true)) {
+        return;
+      }
+    }
+  }
+
+
+  private void doSeek(SeekTarget target) {
+    if (playbin == null) {
+      return;
+    }
+    // A flushing seek can't go through while the streaming thread is
+    // waiting for room in the lossless queue. The seek that queues the next
+    // round of a loop doesn't flush, and leaves the queue alone.
+    boolean flush = target.flags.contains(SeekFlags.FLUSH);
+    if (flush) {
+      releaseFrameQueue();
+    }
+    // A stop of -1 isn't a position. The stop is left as it is, unless an
+    // earlier seek ended the segment somewhere, and then it's moved to the
+    // end of the movie.
+    long stop = target.stop;
+    SeekType stopType = SeekType.SET;
+    if (stop == -1) {
+      long duration = segmentStop != -1 ? playbin.queryDuration(TimeUnit.NANOSECONDS) : -1;
+      if (0 < duration) {
+        stop = duration;
+      } else {
+        stopType = SeekType.NONE;
+      }
+    }
+    boolean res = playbin.seek(target.rate, Format.TIME, target.flags, SeekType.SET, target.start, stopType, stop);
+    if (res && stopType == SeekType.SET) {
+      // Ending at the duration is the same as an open segment
+      segmentStop = target.stop;
+    }
+    if (res) {
+      // The seek is over once the pipeline has prerolled at the new position,
+      // waiting for that keeps the next one from flushing this one halfway.
+      // Only the seek thread waits here.
+      if (flush) {
+        playbin.getState(1, TimeUnit.SECONDS);
+      }
+      executedSeeks.incrementAndGet();
+    }
+    if (flush) {
+      engageFrameQueue();
+    }
+    if (!res) {
+      PGraphics.showWarning("Seek operation failed.");
+    }
+  }
+
+
+  private static class SeekTarget {
+    final double rate;
+    final long start;
+    final long stop;
+    final EnumSet<SeekFlags> flags;
+
+    SeekTarget(double rate, long start, long stop, EnumSet<SeekFlags> flags) {
+      this.rate = rate;
+      this.start = start;
+      this.stop = stop;
+      this.flags = flags;
+    }
+
+    long position() {
+      return 0 < rate || stop == -1 ? start : stop;
+    }
+  }
+  
+  
+  private void fireMovieEvent() {
+    Executor executor = eventExecutor;
+    if (executor == null) {
+      deliverMovieEvent();
+    } else if (eventPending.compareAndSet(false, true)) {
+      try {
+        executor.execute(eventTask);
+      } catch (RejectedExecutionException e) {
+        eventPending.set(false);
+      }
+    } else {
+      // The previous event hasn't been handled yet, and the handler will see
+      // this frame when it gets to it.
+      coalescedEvents.incrementAndGet();
+    }
+  }
+
+
+  private void deliverMovieEvent() {
+    FrameListener<? super Movie>[] listeners = frameListeners;
+    for (int i = 0; i < listeners.length; i++) {
+      try {
+        listeners[i].frameAvailable(this);
+      } catch (Exception e) {
+        System.err.println("error, removing frame listener");
+        e.printStackTrace();
+        removeFrameListener(listeners[i]);
+      }
+    }
+
+    if (movieEventMethod != null) {
+      try {
+        movieEventMethod.invoke(eventHandler, this);
+      } catch (Exception e) {
+        System.err.println("error, disabling movieEvent() for " + filename);
+        e.printStackTrace();
+        movieEventMethod = null;
+      }
+    }
+  }  
+  
+
+  ////////////////////////////////////////////////////////////
+
+  // Buffer source interface.
+
+
+  /**
+   * Sets the object to use as destination for the frames read from the stream.
+   * The color conversion mask is automatically set to the one required to
+   * copy the frames to OpenGL.
+   * 
+   * NOTE: This is not official API and may/will be removed at any time.
+   *
+   * @param Object dest
+   */
+  public void setBufferSink(Object sink) {
+    bufferSink = sink;
+    sinkAdapter = null;
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public boolean hasBufferSink() {
+    return bufferSink != null;
+  }
+
+
+  /**
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public synchronized void disposeBuffer(Object buf) {
+    ((Buffer)buf).dispose();
+  }
+
+
+  protected void getSinkMethods() {
+    if (bufferSink instanceof BufferSink) {
+      sinkAdapter = (BufferSink)bufferSink;
+    } else {
+      // Renderers that don't implement BufferSink are still supported, but
+      // their methods have to be called through reflection.
+      sinkAdapter = new ReflectiveBufferSink(bufferSink, "Movie");
+    }
+    sinkAdapter.setBufferSource(this);
   }
 
 
   public synchronized void post() {
-    if (useBufferSink && sinkDisposeMethod != null) {
+    if (useBufferSink && sinkAdapter != null) {
       try {
-        sinkDisposeMethod.invoke(bufferSink, new Object[] {});
+        sinkAdapter.disposeSourceBuffer();
       } catch (Exception e) {
         e.printStackTrace();
       }
@@ -802,90 +3000,295 @@ public class Movie extends PImage implements PConstants {
   // Listener of GStreamer events.
   
   
+  private void readCaps(Sample sample) {
+    // Pull out metadata from caps
+    Structure capsStruct = sample.getCaps().getStructure(0);
+    int prevWidth = sourceWidth, prevHeight = sourceHeight;
+    sourceWidth = capsStruct.getInteger("width");
+    sourceHeight = capsStruct.getInteger("height");
+    sampleFormat = capsStruct.getString("format");
+    grayCaps = "GRAY8".equals(sampleFormat);
+    yuvCaps = "I420".equals(sampleFormat) || "NV12".equals(sampleFormat);
+    Fraction fps = capsStruct.getFraction("framerate");
+    sourceFrameRate = (float)fps.numerator / fps.denominator;
+    fpsDenominator = Math.max(1, fps.denominator);
+    fpsNumerator = 0 < fps.numerator ? fps.numerator : -1;
+
+    // Set the playback rate to the file's native framerate
+    // unless the user has already set a custom one
+    if (frameRate == -1.0) {
+      frameRate = sourceFrameRate;
+    }
+
+    if (convertThreads <= 0 && (sourceWidth != prevWidth || sourceHeight != prevHeight)) {
+      // Converters made before the size was known got a single thread. The
+      // count for the real size is picked up when they negotiate again.
+      configureConverters();
+    }
+  }
+
+
   private class NewSampleListener implements AppSink.NEW_SAMPLE {
 
     @Override
     public FlowReturn newSample(AppSink sink) {
       Sample sample = sink.pullSample();
+      long arrival = System.nanoTime();
+
+      if (steppedTime != -1) {
+        // The frame a paused step stopped on is played again when the movie
+        // resumes, and it was already handed over with the preroll.
+        long stepped = steppedTime;
+        steppedTime = -1;
+        BufferReader.readTiming(sample.getBuffer(), steppedInfo);
+        if (steppedInfo.presentationTime == stepped) {
+          sample.dispose();
+          return FlowReturn.OK;
+        }
+      }
+
+      publishSample(sample, arrival, playing);
+      return FlowReturn.OK;
+    }
+  }
+
 
-      // Pull out metadata from caps
-      Structure capsStruct = sample.getCaps().getStructure(0);
-      sourceWidth = capsStruct.getInteger("width");
-      sourceHeight = capsStruct.getInteger("height");
-      Fraction fps = capsStruct.getFraction("framerate");
-      sourceFrameRate = (float)fps.numerator / fps.denominator;
+  /**
+   * Copies the frame of the sample, or keeps the sample itself, wherever the
+   * current settings say, and flags it as available. The sample is disposed
+   * unless it's kept. Only called on the streaming thread.
+   */
+  private void publishSample(Sample sample, long arrival, boolean fire) {
+    // The caps are only parsed again after the sink got a caps event
+    if (capsChanged) {
+      capsChanged = false;
+      readCaps(sample);
+    }
 
-      // Set the playback rate to the file's native framerate
-      // unless the user has already set a custom one
-      if (frameRate == -1.0) {
-        frameRate = sourceFrameRate;
+    if (yuvCaps) {
+      // Planar frames are never converted nor copied, they can only be
+      // read through leases.
+      leasedSample.set(sample, sourceWidth, sourceHeight, sampleFormat, arrival);
+      available = true;
+      if (fire) {
+        fireMovieEvent();
       }
+      return;
+    }
+
+    if (frameReader == null) {
+      frameReader = new BufferReader();
+    }
 
+    if (grayCaps) {
       Buffer buffer = sample.getBuffer();
-      ByteBuffer bb = buffer.map(false);
-      if (bb != null) {
-                
-        // If the EDT is still copying data from the buffer, just drop this frame
-        if (!bufferLock.tryLock()) {
-          return FlowReturn.OK;
+      if (frameReader.map(buffer)) {
+        int slot = frameExchange.backIndex();
+        byte[] dest = grayPixels[slot];
+        int count = sourceWidth * sourceHeight;
+        if (dest == null || dest.length != count) {
+          dest = grayPixels[slot] = new byte[count];
+        }
+        frameReader.copyGray(sourceWidth, sourceHeight, dest);
+        slotInfo[slot].set(buffer, arrival);
+        frameReader.unmap();
+        frameExchange.publish();
+
+        available = true;
+        if (fire) {
+          fireMovieEvent();
+        }
+      }
+      sample.dispose();
+      return;
+    }
+
+    if (useFrameLeases) {
+      // The sample is not copied, but kept mapped until the last lease on
+      // it has been released.
+      leasedSample.set(sample, sourceWidth, sourceHeight, sampleFormat, arrival);
+      available = true;
+      if (fire) {
+        fireMovieEvent();
+      }
+      return;
+    }
+
+    if (pullOnRead) {
+      // Only the latest sample is kept, and it's copied when read() is
+      // called. The one it replaces is never looked at.
+      pendingArrival = arrival;
+      Sample prev = pendingSample.getAndSet(sample);
+      if (prev != null) {
+        prev.dispose();
+      }
+      available = true;
+      if (fire) {
+        fireMovieEvent();
+      }
+      return;
+    }
+
+    FrameQueue queue = frameQueue;
+    int[] queued = null;
+
+    // Only the buffer sink needs the frame as a ByteBuffer, everything else
+    // reads it through the frame reader, which doesn't allocate.
+    Buffer buffer = sample.getBuffer();
+    boolean toSink = useBufferSink && sinkAdapter != null;
+    ByteBuffer bb = toSink ? buffer.map(false) : null;
+    if (toSink ? bb != null : frameReader.map(buffer)) {
+      if (toSink) { // The native buffer from GStreamer is copied to the buffer sink.
+        try {
+          sinkAdapter.copyBufferFromSource(buffer, bb, sourceWidth, sourceHeight);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+        synchronized (sinkInfo) {
+          sinkInfo.set(buffer, arrival);
+        }
+      } else if (queue != null) {
+        int count = sourceWidth * sourceHeight;
+        queued = queue.obtain(count);
+        frameReader.copyRows(sourceWidth, sourceHeight, queued);
+        queuedInfo.set(buffer, arrival);
+      } else {
+        // The frame goes into the back slot of the exchange, which is never
+        // touched by read(), so there is no need to lock anything here.
+        int slot = frameExchange.backIndex();
+        int[] dest = framePixels[slot];
+        int count = sourceWidth * sourceHeight;
+        if (dest == null || dest.length != count) {
+          dest = framePixels[slot] = new int[count];
+        }
+        frameReader.copyRows(sourceWidth, sourceHeight, dest);
+        slotInfo[slot].set(buffer, arrival);
+        frameExchange.publish();
+      }
+      if (toSink) {
+        buffer.unmap();
+      } else {
+        frameReader.unmap();
+      }
+
+      if (queued != null) {
+        // This is where the streaming thread waits when the queue is full,
+        // holding back the rest of the pipeline until read() catches up.
+        queue.put(queued, queuedInfo);
+      }
+
+      available = true;
+      if (fire) {
+        fireMovieEvent();
+      }
+    }
+    sample.dispose();
+  }
+
+  
+  private class CapsListener implements Pad.EVENT_PROBE {
+    @Override
+    public PadProbeReturn eventReceived(Pad pad, Event event) {
+      if (event instanceof CapsEvent) {
+        capsChanged = true;
+      }
+      return PadProbeReturn.OK;
+    }
+  }
+
+
+  private class ElementListener implements Bin.DEEP_ELEMENT_ADDED, Bin.DEEP_ELEMENT_REMOVED {
+    @Override
+    public void elementAdded(Bin bin, Bin sub, Element element) {
+      ElementFactory factory = element.getFactory();
+      if (factory == null) {
+        return;
+      }
+      if (factory.getKlass().contains("Decoder/Video")) {
+        videoDecoder = element;
+        configureDecoder(element);
+        if (keyframeIndex != null) {
+          indexKeyframes(element);
         }
-        
-        available = true;        
-        if (useBufferSink && bufferSink != null) { // The native buffer from GStreamer is copied to the buffer sink.
-                    
+        DecoderListener<? super Movie> listener = decoderListener;
+        if (listener != null) {
           try {
-            sinkCopyMethod.invoke(bufferSink, new Object[] { buffer, bb, sourceWidth, sourceHeight });
-            if (playing) {
-              fireMovieEvent();
-            }             
+            listener.decoderCreated(Movie.this, element);
           } catch (Exception e) {
             e.printStackTrace();
-          } finally {
-            bufferLock.unlock();
-          }        
-          
-        } else {          
-          IntBuffer rgb = bb.asIntBuffer();
-
-          if (copyPixels == null) {
-            copyPixels = new int[sourceWidth * sourceHeight];
           }
-          
-          try {
-            rgb.get(copyPixels, 0, width * height);
-            if (playing) {
-              fireMovieEvent();
-            }          
-          } finally {
-            bufferLock.unlock();
-          }        
-          
         }
-        
-        buffer.unmap();
+      } else if ("videoconvert".equals(factory.getName()) ||
+                 "videoscale".equals(factory.getName())) {
+        converters.add(element);
+        configureConverter(element);
+      }
+    }
+
+    @Override
+    public void elementRemoved(Bin bin, Bin sub, Element element) {
+      converters.remove(element);
+      if (element == videoDecoder) {
+        videoDecoder = null;
       }
-      sample.dispose();
-      return FlowReturn.OK;
     }
   }
 
-  
+
+  private class KeyframeListener implements Pad.DATA_PROBE {
+    @Override
+    public PadProbeReturn dataReceived(Pad pad, Buffer buffer) {
+      KeyframeIndex index = keyframeIndex;
+      long pts = buffer.getPresentationTimestamp();
+      if (index != null && 0 <= pts &&
+          !buffer.getFlags().contains(BufferFlags.DELTA_UNIT)) {
+        index.add(pts, buffer.getOffset());
+      }
+      return PadProbeReturn.OK;
+    }
+  }
+
+
+  private class PreviewListener implements Pad.EVENT_PROBE, Pad.DATA_PROBE {
+    @Override
+    public PadProbeReturn eventReceived(Pad pad, Event event) {
+      if (event instanceof CapsEvent) {
+        previewPending = true;
+      }
+      return PadProbeReturn.OK;
+    }
+
+    @Override
+    public PadProbeReturn dataReceived(Pad pad, Buffer buffer) {
+      // The caps of the pad are only set once the caps event went through,
+      // so the size is looked at when the first buffer after it arrives.
+      if (previewPending && (1 < previewFactor || previewSkip)) {
+        updatePreviewScale(pad);
+      }
+      return PadProbeReturn.OK;
+    }
+  }
+
+
   private class NewPrerollListener implements AppSink.NEW_PREROLL {
     @Override
     public FlowReturn newPreroll(AppSink sink) {
       Sample sample = sink.pullPreroll();
 
-      // Pull out metadata from caps
-      Structure capsStruct = sample.getCaps().getStructure(0);
-      sourceWidth = capsStruct.getInteger("width");
-      sourceHeight = capsStruct.getInteger("height");
-      Fraction fps = capsStruct.getFraction("framerate");
-      sourceFrameRate = (float)fps.numerator / fps.denominator;
-
-      // Set the playback rate to the file's native framerate
-      // unless the user has already set a custom one
-      if (frameRate == -1.0) {
-        frameRate = sourceFrameRate;
+      if (stepPending) {
+        // While paused, the frame a step lands on only reaches the sink as a
+        // preroll, so it's handed over from here.
+        stepPending = false;
+        BufferReader.readTiming(sample.getBuffer(), steppedInfo);
+        steppedTime = steppedInfo.presentationTime;
+        publishSample(sample, System.nanoTime(), true);
+        return FlowReturn.OK;
+      }
+
+      // The caps are only parsed again after the sink got a caps event
+      if (capsChanged) {
+        capsChanged = false;
+        readCaps(sample);
       }
 
       sample.dispose();
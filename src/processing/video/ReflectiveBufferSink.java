@@ -0,0 +1,129 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts a buffer sink that doesn't implement BufferSink, such as the
+ * textures of renderers built against older versions of this library, by
+ * calling its methods through reflection. The argument arrays are reused
+ * between calls, so the per-frame path doesn't allocate.
+ */
+class ReflectiveBufferSink implements BufferSink {
+  private final Object sink;
+  private final Method copyMethod;
+  private final Method setMethod;
+  private final Method disposeMethod;
+  private final Method getMethod;
+
+  private final Object[] copyArgs = new Object[4];
+  private final Object[] getArgs = new Object[1];
+  private final Object[] noArgs = new Object[0];
+
+
+  ReflectiveBufferSink(Object sink, String owner) {
+    this.sink = sink;
+
+    try {
+      copyMethod = sink.getClass().getMethod("copyBufferFromSource",
+        new Class<?>[] { Object.class, ByteBuffer.class, int.class, int.class });
+    } catch (Exception e) {
+      throw new RuntimeException(owner + ": provided sink object doesn't have a " +
+                                 "copyBufferFromSource method.");
+    }
+
+    try {
+      setMethod = sink.getClass().getMethod("setBufferSource",
+        new Class<?>[] { Object.class });
+    } catch (Exception e) {
+      throw new RuntimeException(owner + ": provided sink object doesn't have a " +
+                                 "setBufferSource method.");
+    }
+
+    try {
+      disposeMethod = sink.getClass().getMethod("disposeSourceBuffer",
+        new Class<?>[] { });
+    } catch (Exception e) {
+      throw new RuntimeException(owner + ": provided sink object doesn't have " +
+                                 "a disposeSourceBuffer method.");
+    }
+
+    try {
+      getMethod = sink.getClass().getMethod("getBufferPixels",
+        new Class<?>[] { int[].class });
+    } catch (Exception e) {
+      throw new RuntimeException(owner + ": provided sink object doesn't have " +
+                                 "a getBufferPixels method.");
+    }
+  }
+
+
+  @Override
+  public void setBufferSource(Object source) {
+    invoke(setMethod, new Object[] { source });
+  }
+
+
+  @Override
+  public synchronized void copyBufferFromSource(Object natRef, ByteBuffer byteBuf, int w, int h) {
+    copyArgs[0] = natRef;
+    copyArgs[1] = byteBuf;
+    // The boxed sizes are only replaced when they change
+    if (copyArgs[2] == null || (Integer)copyArgs[2] != w) copyArgs[2] = w;
+    if (copyArgs[3] == null || (Integer)copyArgs[3] != h) copyArgs[3] = h;
+    try {
+      invoke(copyMethod, copyArgs);
+    } finally {
+      copyArgs[0] = copyArgs[1] = null;
+    }
+  }
+
+
+  @Override
+  public void disposeSourceBuffer() {
+    invoke(disposeMethod, noArgs);
+  }
+
+
+  @Override
+  public synchronized void getBufferPixels(int[] pixels) {
+    getArgs[0] = pixels;
+    try {
+      invoke(getMethod, getArgs);
+    } finally {
+      getArgs[0] = null;
+    }
+  }
+
+
+  private void invoke(Method method, Object[] args) {
+    try {
+      method.invoke(sink, args);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits the rows of a frame into bands that are processed in parallel on a
+ * fork-join pool, one band per worker plus one for the calling thread. The
+ * band tasks are made once and run again for every frame, and the caller
+ * waits for them without a lock, so a frame allocates nothing. One instance
+ * is only used by one thread at a time.
+ */
+class RowBands {
+  interface Rows {
+    void run(int y0, int y1);
+  }
+
+  private final Rows rows;
+  private Band[] bands = new Band[0];
+  private final AtomicInteger remaining = new AtomicInteger();
+  private volatile Thread waiter;
+
+
+  RowBands(Rows rows) {
+    this.rows = rows;
+  }
+
+
+  /**
+   * Runs the rows over [0, height), in about as many bands as the pool has
+   * workers, and waits for all of them to finish.
+   */
+  void run(ForkJoinPool pool, int height) {
+    int n = Math.min(pool.getParallelism() + 1, height);
+    if (n <= 1 || ForkJoinTask.inForkJoinPool()) {
+      // A worker waiting for the others could hold up the pool it's in
+      rows.run(0, height);
+      return;
+    }
+    if (bands.length != n - 1) {
+      bands = new Band[n - 1];
+      for (int i = 0; i < bands.length; i++) {
+        bands[i] = new Band();
+      }
+    }
+
+    waiter = Thread.currentThread();
+    remaining.set(bands.length);
+    try {
+      for (int i = 0; i < bands.length; i++) {
+        Band band = bands[i];
+        band.reinitialize();
+        band.y0 = (int)((long)height * (i + 1) / n);
+        band.y1 = (int)((long)height * (i + 2) / n);
+        try {
+          pool.execute(band);
+        } catch (RejectedExecutionException e) {
+          band.invoke();
+        }
+      }
+      rows.run(0, (int)((long)height / n));
+    } finally {
+      // The other bands write into the same frame, so they are waited for
+      // even if this one failed.
+      while (0 < remaining.get()) {
+        LockSupport.park(this);
+      }
+      for (int i = 0; i < bands.length; i++) {
+        // Only a few instructions left once the count is down
+        while (!bands[i].isDone()) {
+          Thread.yield();
+        }
+      }
+      waiter = null;
+    }
+  }
+
+
+  private class Band extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    int y0;
+    int y1;
+
+    @Override
+    protected void compute() {
+      try {
+        rows.run(y0, y1);
+      } finally {
+        if (remaining.decrementAndGet() == 0) {
+          LockSupport.unpark(waiter);
+        }
+      }
+    }
+  }
+}
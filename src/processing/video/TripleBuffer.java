@@ -0,0 +1,114 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free exchange of frames between the GStreamer streaming thread (the
+ * producer) and the animation thread (the consumer). It only juggles the
+ * indices of three slots, the frame data itself is stored by the caller:
+ * the producer always writes into the back slot, the consumer always reads
+ * from the front slot, and the middle slot is swapped atomically between
+ * them. Neither side ever waits for the other, and the consumer always gets
+ * the latest published frame.
+ */
+class TripleBuffer {
+  static final int SLOTS = 3;
+
+  // Lowest two bits hold the index of the middle slot, the third one is set
+  // when the middle slot contains a frame that has not been consumed yet.
+  private static final int INDEX_MASK = 0x3;
+  private static final int FRESH = 0x4;
+
+  private final AtomicInteger middle = new AtomicInteger(2);
+  private int back = 0;   // only touched by the producer
+  private int front = 1;  // only touched by the consumer
+
+  // Frames that were published but replaced before the consumer got to them,
+  // and calls to consume() that found no new frame.
+  private volatile long dropped;
+  private volatile long repeated;
+
+
+  /**
+   * Index of the slot the producer should write the next frame into.
+   */
+  int backIndex() {
+    return back;
+  }
+
+
+  /**
+   * Index of the slot holding the frame the consumer got last.
+   */
+  int frontIndex() {
+    return front;
+  }
+
+
+  /**
+   * Makes the frame in the back slot the latest one. Called by the producer.
+   */
+  void publish() {
+    int prev = middle.getAndSet(back | FRESH);
+    back = prev & INDEX_MASK;
+    if ((prev & FRESH) != 0) {
+      dropped++;
+    }
+  }
+
+
+  /**
+   * Moves the latest frame into the front slot, returning false if nothing
+   * new has been published since the last call. Called by the consumer.
+   */
+  boolean consume() {
+    if ((middle.get() & FRESH) == 0) {
+      repeated++;
+      return false;
+    }
+    int prev = middle.getAndSet(front);
+    front = prev & INDEX_MASK;
+    return true;
+  }
+
+
+  /**
+   * Check if there is a frame that hasn't been consumed yet.
+   */
+  boolean hasFresh() {
+    return (middle.get() & FRESH) != 0;
+  }
+
+
+  long droppedFrames() {
+    return dropped;
+  }
+
+
+  long repeatedFrames() {
+    return repeated;
+  }
+}
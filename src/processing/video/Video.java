@@ -30,9 +30,12 @@ import processing.core.PApplet;
 import processing.core.PConstants;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class contains some basic functions used by the rest of the classes in
@@ -60,6 +63,38 @@ public class Video implements PConstants {
   protected static boolean useGLBufferSink = true;    
 
   protected static boolean defaultGLibContext = false;
+
+  // Pixel layouts that frames can be copied into with Movie.readInto() and
+  // Capture.readInto(). For int destinations the name lists the channels from
+  // the most to the least significant byte of each int (LAYOUT_ARGB is what
+  // PImage uses), for byte destinations it gives the order of the bytes in
+  // memory. The 24-bit layouts can only be used with byte destinations.
+  public static final int LAYOUT_ARGB = 0;
+  public static final int LAYOUT_ABGR = 1;
+  public static final int LAYOUT_RGBA = 2;
+  public static final int LAYOUT_BGRA = 3;
+  public static final int LAYOUT_RGB  = 4;
+  public static final int LAYOUT_BGR  = 5;
+
+  // Scaling methods of videoscale, for Movie.setScaleMethod() and
+  // Capture.setScaleMethod(). The values are the ones GStreamer uses.
+  public static final int SCALE_NEAREST  = 0;
+  public static final int SCALE_BILINEAR = 1;
+  public static final int SCALE_4TAP     = 2;
+  public static final int SCALE_LANCZOS  = 3;
+
+  // Channel orders of the ints coming out of the sinks: BGRA and ARGB caps
+  // give ARGB ints, BGRx and xRGB give XRGB, RGBA gives ABGR on little endian
+  // machines and RGBA on big endian ones, and RGBx gives XBGR.
+  static final int ORDER_ARGB = 0;
+  static final int ORDER_XRGB = 1;
+  static final int ORDER_ABGR = 2;
+  static final int ORDER_XBGR = 3;
+  static final int ORDER_RGBA = 4;
+  static final int ORDER_BGRA = 5;
+
+  static protected int parallelThreshold = 1920 * 1080;
+  static protected ForkJoinPool rowPool = null;
   
   protected static long INSTANCES_COUNT = 0;
   
@@ -398,27 +433,420 @@ public class Video implements PConstants {
    * @param pixels int[]
    */
   static protected void convertToARGB(int[] pixels, int width, int height) {
-    int t = 0;
-    int p = 0;
     if (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN) {
       // RGBA to ARGB conversion: shifting RGB 8 bits to the right,
       // and placing A 24 bits to the left.
-      for (int y = 0; y < height; y++) {
-        for (int x = 0; x < width; x++) {
-          int pixel = pixels[p++];
-          pixels[t++] = (pixel >>> 8) | ((pixel << 24) & 0xFF000000);
-        }
-      }
+      convertToARGB(pixels, width, height, ORDER_RGBA);
     } else {
       // We have to convert ABGR into ARGB, so R and B must be swapped,
       // A and G just brought back in.
-      for (int y = 0; y < height; y++) {
-        for (int x = 0; x < width; x++) {
-          int pixel = pixels[p++];
-          pixels[t++] = ((pixel & 0xFF) << 16) | ((pixel & 0xFF0000) >> 16) |
-                        (pixel & 0xFF00FF00);
+      convertToARGB(pixels, width, height, ORDER_ABGR);
+    }
+  }
+
+
+  /**
+   * Reorders width * height pixels, which hold the channels in the given
+   * order, into ARGB. Frames of at least parallelThreshold pixels are split
+   * in bands of rows that are converted in parallel.
+   */
+  static protected void convertToARGB(int[] pixels, int width, int height,
+                                      int order) {
+    if (order == ORDER_ARGB) {
+      return;
+    }
+    if (width * height < parallelThreshold) {
+      toARGB(pixels, 0, width * height, order);
+    } else {
+      ConvertBands bands = convertBands.get();
+      bands.pixels = pixels;
+      bands.width = width;
+      bands.order = order;
+      try {
+        bands.bands.run(rowPool(), height);
+      } finally {
+        bands.pixels = null;
+      }
+    }
+  }
+
+
+  /**
+   * Copies a frame of 32-bit pixels out of a mapped buffer. The sink only
+   * negotiates 32-bit formats, whose rows are never padded in the default
+   * GStreamer layout, so consecutive rows are <b>width</b> pixels apart.
+   * Frames of at least parallelThreshold pixels are copied in bands of rows
+   * in parallel.
+   */
+  static protected void copyRows(ByteBuffer src, int width, int height,
+                                 int[] dest) {
+    IntBuffer ints = src.asIntBuffer();
+    int count = Math.min(width * height, Math.min(dest.length, ints.remaining()));
+    if (count < parallelThreshold || width <= 0) {
+      ints.get(dest, 0, count);
+      return;
+    }
+
+    int rows = count / width;
+    CopyBands bands = copyBands.get();
+    bands.ints = ints;
+    bands.width = width;
+    bands.dest = dest;
+    try {
+      bands.bands.run(rowPool(), rows);
+    } finally {
+      bands.ints = null;
+      bands.dest = null;
+    }
+    if (rows * width < count) {
+      // The last row of a truncated buffer
+      IntBuffer view = ints.duplicate();
+      view.position(rows * width);
+      view.get(dest, rows * width, count - rows * width);
+    }
+  }
+
+
+  // The band tasks of the parallel conversion and copy, made once for each
+  // thread that uses them, with the arguments of the current call.
+  static private final ThreadLocal<ConvertBands> convertBands = new ThreadLocal<ConvertBands>() {
+    @Override
+    protected ConvertBands initialValue() {
+      return new ConvertBands();
+    }
+  };
+  static private final ThreadLocal<CopyBands> copyBands = new ThreadLocal<CopyBands>() {
+    @Override
+    protected CopyBands initialValue() {
+      return new CopyBands();
+    }
+  };
+
+
+  static private class ConvertBands implements RowBands.Rows {
+    final RowBands bands = new RowBands(this);
+    int[] pixels;
+    int width;
+    int order;
+
+    @Override
+    public void run(int y0, int y1) {
+      toARGB(pixels, y0 * width, y1 * width, order);
+    }
+  }
+
+
+  static private class CopyBands implements RowBands.Rows {
+    final RowBands bands = new RowBands(this);
+    IntBuffer ints;
+    int width;
+    int[] dest;
+
+    @Override
+    public void run(int y0, int y1) {
+      // The view is the only thing made per band, the mapped ByteBuffer
+      // this path reads from is new for every frame anyway
+      IntBuffer view = ints.duplicate();
+      view.position(y0 * width);
+      view.get(dest, y0 * width, (y1 - y0) * width);
+    }
+  }
+
+
+  /**
+   * Sets the pool that large frames are copied and converted on, in bands
+   * of rows. By default (or when <b>pool</b> is null) this is the common
+   * fork-join pool.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public static void setThreadPool(ForkJoinPool pool) {
+    rowPool = pool;
+  }
+
+
+  static protected ForkJoinPool rowPool() {
+    ForkJoinPool pool = rowPool;
+    return pool != null ? pool : ForkJoinPool.commonPool();
+  }
+
+
+  /**
+   * Sets the number of pixels from which frames are copied and converted in
+   * parallel.
+   *
+   * NOTE: This is not official API and may/will be removed at any time.
+   */
+  public static void setParallelThreshold(int pixels) {
+    parallelThreshold = Math.max(1, pixels);
+  }
+
+
+  /**
+   * Copies <b>count</b> pixels from <b>src</b>, as they come out of the sink,
+   * into <b>dest</b> using the given layout. <b>swapRB</b> tells whether the
+   * source ints hold ABGR instead of ARGB values, and <b>opaque</b> whether
+   * the alpha channel has to be filled in because the source has none.
+   */
+  /**
+   * Throws an IllegalArgumentException if <b>dest</b>, an int[], IntBuffer or
+   * ByteBuffer, doesn't have room for <b>count</b> pixels in the given layout.
+   */
+  static protected void checkRoom(Object dest, int count, int layout) {
+    long room;
+    if (dest instanceof int[]) {
+      room = ((int[])dest).length;
+    } else if (dest instanceof IntBuffer) {
+      room = ((IntBuffer)dest).remaining();
+    } else {
+      room = ((ByteBuffer)dest).remaining() / (LAYOUT_BGRA < layout ? 3 : 4);
+    }
+    if (room < count) {
+      throw new IllegalArgumentException("The destination has room for " + room +
+                                         " pixels, but the frame has " + count);
+    }
+  }
+
+
+  static protected void copyPixels(IntBuffer src, int count, boolean swapRB,
+                                   boolean opaque, int[] dest, int layout) {
+    if (LAYOUT_BGRA < layout) {
+      throw new IllegalArgumentException("24-bit layouts need a ByteBuffer destination");
+    }
+    count = Math.min(count, Math.min(src.remaining(), dest.length));
+    src.get(dest, 0, count);
+    convertPixels(dest, 0, count, swapRB, opaque, layout);
+  }
+
+
+  static protected void copyPixels(IntBuffer src, int count, boolean swapRB,
+                                   boolean opaque, IntBuffer dest, int layout) {
+    if (LAYOUT_BGRA < layout) {
+      throw new IllegalArgumentException("24-bit layouts need a ByteBuffer destination");
+    }
+    count = Math.min(count, Math.min(src.remaining(), dest.remaining()));
+    if (dest.hasArray()) {
+      int offset = dest.arrayOffset() + dest.position();
+      src.get(dest.array(), offset, count);
+      convertPixels(dest.array(), offset, count, swapRB, opaque, layout);
+      dest.position(dest.position() + count);
+    } else {
+      // Direct buffers are filled in chunks through a small scratch array.
+      int[] chunk = copyChunk.get();
+      while (0 < count) {
+        int n = Math.min(count, chunk.length);
+        src.get(chunk, 0, n);
+        convertPixels(chunk, 0, n, swapRB, opaque, layout);
+        dest.put(chunk, 0, n);
+        count -= n;
+      }
+    }
+  }
+
+
+  static protected void copyPixels(IntBuffer src, int count, boolean swapRB,
+                                   boolean opaque, ByteBuffer dest, int layout) {
+    if (layout <= LAYOUT_BGRA) {
+      // The layout gives the byte order in memory, which is what a big endian
+      // int view of the destination produces.
+      ByteBuffer view = dest.duplicate().order(ByteOrder.BIG_ENDIAN);
+      IntBuffer ints = view.asIntBuffer();
+      copyPixels(src, count, swapRB, opaque, ints, layout);
+      // Only as far as the pixels that were actually written
+      dest.position(dest.position() + 4 * ints.position());
+      return;
+    }
+
+    count = Math.min(count, Math.min(src.remaining(), dest.remaining() / 3));
+    int[] chunk = copyChunk.get();
+    byte[] bytes = copyBytes.get();
+    while (0 < count) {
+      int n = Math.min(count, chunk.length);
+      src.get(chunk, 0, n);
+      convertPixels(chunk, 0, n, swapRB, opaque, LAYOUT_ARGB);
+      for (int i = 0, b = 0; i < n; i++) {
+        int argb = chunk[i];
+        if (layout == LAYOUT_RGB) {
+          bytes[b++] = (byte)(argb >> 16);
+          bytes[b++] = (byte)(argb >> 8);
+          bytes[b++] = (byte)argb;
+        } else {
+          bytes[b++] = (byte)argb;
+          bytes[b++] = (byte)(argb >> 8);
+          bytes[b++] = (byte)(argb >> 16);
         }
       }
+      dest.put(bytes, 0, 3 * n);
+      count -= n;
     }
-  }  
+  }
+
+
+  /**
+   * Number of threads for converting or scaling frames of the given size
+   * when no count was set: about one per million pixels, so small frames
+   * don't pay for synchronizing threads, and at most one per core. When the
+   * size isn't known yet this is 1, since 0 would make videoconvert and
+   * videoscale use every core, whatever the size.
+   */
+  static protected int autoThreads(int width, int height) {
+    if (width <= 0 || height <= 0) {
+      return 1;
+    }
+    int cores = Runtime.getRuntime().availableProcessors();
+    return Math.max(1, Math.min(cores, (width * height) >> 20));
+  }
+
+
+  /**
+   * Sets the thread count, scaling method and dithering of a videoconvert or
+   * videoscale element. Negative values leave the element's default, and
+   * properties the installed GStreamer version lacks are skipped.
+   */
+  static protected void configureConverter(Element element, int threads,
+                                           int scaleMethod, int dither) {
+    List<String> props = element.listPropertyNames();
+    ElementFactory factory = element.getFactory();
+    boolean convert = factory != null && "videoconvert".equals(factory.getName());
+    if (0 <= threads && props.contains("n-threads")) {
+      element.set("n-threads", threads);
+    }
+    if (!convert && 0 <= scaleMethod && props.contains("method")) {
+      element.set("method", scaleMethod);
+    }
+    // The dither property of videoscale is a different one, only used by
+    // its Lanczos method.
+    if (convert && 0 <= dither && props.contains("dither")) {
+      element.set("dither", dither);
+    }
+  }
+
+
+  /**
+   * Copies a GRAY8 frame from <b>src</b> into <b>dest</b>, leaving out the
+   * padding GStreamer adds to make every row start at a multiple of 4 bytes.
+   */
+  static protected void copyGray(ByteBuffer src, int width, int height, byte[] dest) {
+    int stride = (width + 3) & ~3;
+    if (src.remaining() < stride * height) {
+      stride = width;
+    }
+    int pos = src.position();
+    if (stride == width) {
+      src.get(dest, 0, Math.min(width * height, Math.min(src.remaining(), dest.length)));
+    } else {
+      for (int y = 0; y < height; y++) {
+        src.position(pos + y * stride);
+        src.get(dest, y * width, width);
+      }
+    }
+    src.position(pos);
+  }
+
+
+  /**
+   * Turns <b>count</b> luma values into opaque gray ARGB pixels.
+   */
+  static protected void expandGray(byte[] src, int count, int[] dest) {
+    count = Math.min(count, Math.min(src.length, dest.length));
+    for (int i = 0; i < count; i++) {
+      int g = src[i] & 0xFF;
+      dest[i] = 0xFF000000 | (g << 16) | (g << 8) | g;
+    }
+  }
+
+
+  static private final int COPY_CHUNK = 4096;
+
+  // Scratch arrays of the copies into direct buffers, one per thread so
+  // several movies can be read at the same time.
+  static private final ThreadLocal<int[]> copyChunk = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[COPY_CHUNK];
+    }
+  };
+  static private final ThreadLocal<byte[]> copyBytes = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[3 * COPY_CHUNK];
+    }
+  };
+
+
+  static private void convertPixels(int[] pixels, int offset, int count,
+                                    boolean swapRB, boolean opaque, int layout) {
+    int end = offset + count;
+    int order;
+    if (swapRB) {
+      order = opaque ? ORDER_XBGR : ORDER_ABGR;
+    } else {
+      order = opaque ? ORDER_XRGB : ORDER_ARGB;
+    }
+    toARGB(pixels, offset, end, order);
+    fromARGB(pixels, offset, end, layout);
+  }
+
+
+  // The kernels below are plain loops over a flat range with no branches in
+  // their bodies, which is the shape HotSpot's auto-vectorizer turns into
+  // SIMD instructions.
+
+  static private void toARGB(int[] pixels, int from, int to, int order) {
+    switch (order) {
+    case ORDER_XRGB:
+      for (int i = from; i < to; i++) {
+        pixels[i] |= 0xFF000000;
+      }
+      break;
+    case ORDER_ABGR:
+      for (int i = from; i < to; i++) {
+        int pixel = pixels[i];
+        pixels[i] = ((pixel & 0xFF) << 16) | ((pixel >> 16) & 0xFF) |
+                    (pixel & 0xFF00FF00);
+      }
+      break;
+    case ORDER_XBGR:
+      for (int i = from; i < to; i++) {
+        int pixel = pixels[i];
+        pixels[i] = ((pixel & 0xFF) << 16) | ((pixel >> 16) & 0xFF) |
+                    (pixel & 0x0000FF00) | 0xFF000000;
+      }
+      break;
+    case ORDER_RGBA:
+      for (int i = from; i < to; i++) {
+        int pixel = pixels[i];
+        pixels[i] = (pixel >>> 8) | (pixel << 24);
+      }
+      break;
+    case ORDER_BGRA:
+      for (int i = from; i < to; i++) {
+        pixels[i] = Integer.reverseBytes(pixels[i]);
+      }
+      break;
+    default:
+      break;
+    }
+  }
+
+
+  static private void fromARGB(int[] pixels, int from, int to, int layout) {
+    switch (layout) {
+    case LAYOUT_ABGR:
+      // Swapping R and B is its own inverse
+      toARGB(pixels, from, to, ORDER_ABGR);
+      break;
+    case LAYOUT_RGBA:
+      for (int i = from; i < to; i++) {
+        int pixel = pixels[i];
+        pixels[i] = (pixel << 8) | (pixel >>> 24);
+      }
+      break;
+    case LAYOUT_BGRA:
+      toARGB(pixels, from, to, ORDER_BGRA);
+      break;
+    default:
+      break;
+    }
+  }
 }
@@ -0,0 +1,158 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.Pipeline;
+import org.freedesktop.gstreamer.Sample;
+import org.freedesktop.gstreamer.elements.AppSink;
+
+import processing.core.PApplet;
+
+/**
+ * Allocation regression test of the per-frame path of the sinks. Frames from
+ * videotestsrc are handed to the newSample() listeners of a Movie and of a
+ * Capture, the same code that runs on the streaming thread, at a size that
+ * takes the parallel copy. The first frame also goes through the caps
+ * change. Once warm, a frame must not allocate more than pullSample() and
+ * getBuffer() of the bindings, which create a wrapper object for every
+ * sample and are measured on their own. The test is skipped when the
+ * plugins it needs aren't installed.
+ *
+ * Run with "ant test". Exits with status 1 if the check fails.
+ */
+public class SampleAllocationTest {
+  // At the parallel threshold, so the frames are copied in bands
+  static final int WIDTH = 1920;
+  static final int HEIGHT = 1080;
+  // Long enough for the JIT to be done with the path, compiling it shows up
+  // as a few hundred bytes here and there
+  static final int WARMUP = 5000;
+  static final int FRAMES = 1000;
+
+  static com.sun.management.ThreadMXBean threads =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+  static long thread = Thread.currentThread().getId();
+  static long overhead;
+
+
+  public static void main(String[] args) {
+    if (WIDTH * HEIGHT < Video.parallelThreshold) {
+      TestMovies.fail("the frames are below the parallel threshold");
+    }
+    File file = TestMovies.write(160, 120, 10);
+    if (file == null) {
+      TestMovies.skip("videotestsrc, avimux or filesink not available");
+    }
+
+    PApplet parent = TestMovies.applet();
+    Movie movie;
+    Capture capture;
+    try {
+      movie = new Movie(parent, file.getAbsolutePath());
+      capture = new Capture(parent, WIDTH, HEIGHT, "pipeline:videotestsrc");
+    } catch (Exception e) {
+      TestMovies.skip("the movie or the capture pipeline can't be made: " + e);
+      return;
+    }
+
+    // Reading the counter may allocate by itself, which is subtracted
+    overhead = Long.MAX_VALUE;
+    for (int i = 0; i < 100; i++) {
+      long t0 = allocated();
+      overhead = Math.min(overhead, allocated() - t0);
+    }
+
+    // The sinks negotiate this format when not drawing with OpenGL
+    String format = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "BGRA" : "ARGB";
+    Pipeline pipeline = (Pipeline)Gst.parseLaunch("videotestsrc ! video/x-raw, format=" + format +
+      ", width=" + WIDTH + ", height=" + HEIGHT + " ! appsink name=sink sync=false");
+    AppSink sink = (AppSink)pipeline.getElementByName("sink");
+    pipeline.play();
+
+    double bindings = bindings(sink);
+    double moviePath = frames(movie.newSampleListener, sink);
+    double capturePath = frames(capture.newSampleListener, sink);
+
+    pipeline.stop();
+    pipeline.dispose();
+    movie.dispose();
+    capture.dispose();
+
+    System.out.println("Bytes allocated per frame by pullSample() and getBuffer(): " + bindings);
+    System.out.println("Bytes allocated per frame by Movie: " + moviePath);
+    System.out.println("Bytes allocated per frame by Capture: " + capturePath);
+    if (bindings < moviePath || bindings < capturePath) {
+      TestMovies.fail("the frame path allocates once warm");
+    }
+    System.out.println("OK");
+    System.exit(0);
+  }
+
+
+  /**
+   * Returns the bytes allocated by pulling a sample and getting its buffer,
+   * as the listeners do.
+   */
+  static double bindings(AppSink sink) {
+    long bytes = 0;
+    for (int i = 0; i < WARMUP + FRAMES; i++) {
+      long t0 = allocated();
+      Sample sample = sink.pullSample();
+      sample.getBuffer();
+      sample.dispose();
+      long t1 = allocated();
+      if (WARMUP <= i) {
+        bytes += t1 - t0 - overhead;
+      }
+    }
+    return (double)bytes / FRAMES;
+  }
+
+
+  /**
+   * Returns the bytes allocated by a whole newSample() of the listener.
+   */
+  static double frames(AppSink.NEW_SAMPLE listener, AppSink sink) {
+    long bytes = 0;
+    for (int i = 0; i < WARMUP + FRAMES; i++) {
+      long t0 = allocated();
+      listener.newSample(sink);
+      long t1 = allocated();
+      if (WARMUP <= i) {
+        bytes += t1 - t0 - overhead;
+      }
+    }
+    return (double)bytes / FRAMES;
+  }
+
+
+  static long allocated() {
+    return threads.getThreadAllocatedBytes(thread);
+  }
+}
@@ -0,0 +1,82 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.io.File;
+
+/**
+ * Steps a paused movie forward and checks that read() hands over the frame
+ * each step lands on, and not the one that was already shown.
+ *
+ * Run with "ant test". Exits with status 1 if the check fails.
+ */
+public class StepTest {
+  static final int TIMEOUT = 5000;
+
+
+  public static void main(String[] args) throws Exception {
+    File file = TestMovies.write(160, 120, 90);
+    if (file == null) {
+      TestMovies.skip("videotestsrc, avimux or filesink not available");
+    }
+
+    Movie movie = new Movie(TestMovies.applet(), file.getAbsolutePath());
+    movie.play();
+    if (!TestMovies.waitFrame(movie, TIMEOUT)) {
+      TestMovies.skip("the movie can't be played, no decoder for it?");
+    }
+    movie.read();
+    movie.pause();
+
+    long frame = stepAndRead(movie, 1);
+    check(movie, stepAndRead(movie, 1), frame + 1);
+    check(movie, stepAndRead(movie, 3), frame + 4);
+
+    movie.dispose();
+    System.out.println("OK");
+    System.exit(0);
+  }
+
+
+  static long stepAndRead(Movie movie, int frames) throws InterruptedException {
+    // Whatever was left from playing is read first
+    while (movie.available()) {
+      movie.read();
+    }
+    movie.step(frames);
+    if (!TestMovies.waitFrame(movie, TIMEOUT)) {
+      TestMovies.fail("no frame after step(" + frames + ") while paused");
+    }
+    movie.read();
+    return movie.currentFrame();
+  }
+
+
+  static void check(Movie movie, long frame, long expected) {
+    if (frame != expected) {
+      movie.dispose();
+      TestMovies.fail("read() returned frame " + frame + " instead of " + expected);
+    }
+  }
+}
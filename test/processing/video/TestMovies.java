@@ -0,0 +1,129 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Part of the Processing project - http://processing.org
+
+  Copyright (c) 2012-22 The Processing Foundation
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General
+  Public License along with this library; if not, write to the
+  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+  Boston, MA  02111-1307  USA
+*/
+
+package processing.video;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.freedesktop.gstreamer.Bus;
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.GstObject;
+import org.freedesktop.gstreamer.Pipeline;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+/**
+ * What the tests share: a sketch to hang the movies on, and short movie files
+ * written with videotestsrc. A test that can't get those is skipped, and says
+ * so, instead of passing without having read a frame.
+ */
+class TestMovies {
+  static final String SKIPPED = "SKIPPED: ";
+
+
+  /**
+   * Returns a sketch that never runs, with a Java2D-like renderer so the
+   * movies don't use the buffer sink.
+   */
+  static PApplet applet() {
+    PApplet parent = new PApplet();
+    parent.g = new PGraphics();
+    return parent;
+  }
+
+
+  /**
+   * Writes <b>frames</b> frames of videotestsrc, at 30 fps and in raw I420,
+   * to a temporary AVI file. Returns null if the plugins aren't installed or
+   * the file couldn't be written.
+   */
+  static File write(int width, int height, int frames) {
+    Video.init();
+    try {
+      File file = File.createTempFile("processing-video-test", ".avi");
+      file.deleteOnExit();
+      Pipeline pipeline = (Pipeline)Gst.parseLaunch("videotestsrc num-buffers=" + frames +
+        " ! video/x-raw, format=I420, width=" + width + ", height=" + height +
+        ", framerate=30/1 ! avimux ! filesink location=\"" + file.getAbsolutePath() + "\"");
+      final boolean[] done = new boolean[2];
+      Bus bus = pipeline.getBus();
+      bus.connect(new Bus.EOS() {
+        public void endOfStream(GstObject source) {
+          synchronized (done) {
+            done[0] = true;
+            done.notifyAll();
+          }
+        }
+      });
+      bus.connect(new Bus.ERROR() {
+        public void errorMessage(GstObject source, int code, String message) {
+          synchronized (done) {
+            done[0] = done[1] = true;
+            done.notifyAll();
+          }
+        }
+      });
+      pipeline.play();
+      long limit = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+      synchronized (done) {
+        while (!done[0] && System.nanoTime() < limit) {
+          done.wait(100);
+        }
+      }
+      pipeline.stop();
+      pipeline.dispose();
+      return done[0] && !done[1] && 0 < file.length() ? file : null;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Waits up to <b>millis</b> for the movie to have a new frame.
+   */
+  static boolean waitFrame(Movie movie, long millis) throws InterruptedException {
+    long limit = System.currentTimeMillis() + millis;
+    while (!movie.available()) {
+      if (limit < System.currentTimeMillis()) {
+        return false;
+      }
+      Thread.sleep(5);
+    }
+    return true;
+  }
+
+
+  static void skip(String reason) {
+    System.out.println(SKIPPED + reason);
+    System.exit(0);
+  }
+
+
+  static void fail(String reason) {
+    System.out.println("FAILED: " + reason);
+    System.exit(1);
+  }
+}